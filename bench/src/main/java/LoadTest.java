@@ -0,0 +1,373 @@
+import com.mongodb.client.MongoDatabase;
+import com.sun.net.httpserver.HttpServer;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * End to end load test. Starts the API server from Main.createServer() on a database, seeds the database through the
+ * API (and directly for buildings and bathrooms, which have no endpoints), then sends requests to a weighted mix of
+ * endpoints at a fixed rate and reports throughput, latency percentiles and errors per endpoint.
+ * <p>
+ * Requests are sent open loop: arrivals are spread randomly (Poisson) at the requested rate whether or not earlier
+ * requests have been answered, and latency is measured from when a request was due to be sent. A slow server
+ * therefore shows up as high latency instead of as fewer requests being sent.
+ * <p>
+ * This is in the default package, with the backend, so it can call it directly. Run it from the project root (the
+ * .env file is needed for the JWT keys):
+ * <p>
+ * java -cp bench/target/benchmarks.jar LoadTest [--db memory|URL] [--rate N[,N...]] [--duration S] [--warmup S]
+ * [--mix endpoint=weight,...] [--users N] [--port N]
+ * <p>
+ * --db memory (the default) uses an in memory stand-in for MongoDB, which has none of the latency of a real
+ * deployment; a URL such as mongodb://localhost:27017 uses that deployment instead. Seeding writes to its
+ * tt-database, so use a throwaway mongod.
+ * --rate takes a comma separated list of rates (requests per second), which are run one after the other to find
+ * where the server saturates. Each rate runs for --warmup seconds (not reported) and then --duration seconds.
+ * --mix can also include batch, which is not in the default mix: one /api/batch request for a bathroom's screen.
+ */
+public class LoadTest {
+    private static final Map<String, Integer> DEFAULT_MIX = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_MIX.put("getBuildingsWithBathrooms", 10);
+        DEFAULT_MIX.put("getBathroomWithReviews", 15);
+        DEFAULT_MIX.put("getReviews", 15);
+        DEFAULT_MIX.put("getBathrooms", 8);
+        DEFAULT_MIX.put("getBuildings", 5);
+        DEFAULT_MIX.put("getChats", 15);
+        DEFAULT_MIX.put("createChat", 5);
+        DEFAULT_MIX.put("deleteChat", 1);
+        DEFAULT_MIX.put("createReview", 5);
+        DEFAULT_MIX.put("getMyInfo", 10);
+        DEFAULT_MIX.put("refreshAccess", 5);
+        DEFAULT_MIX.put("signIn", 2);
+        DEFAULT_MIX.put("signUp", 1);
+    }
+
+    private static final int BUILDINGS = 20;
+    private static final int MAX_BATHROOMS_PER_BUILDING = 6;
+    private static final int REVIEWS_PER_USER = 10;
+    private static final int CHATS_PER_USER = 10;
+    private static final String PASSWORD = "LoadTest-Password-1";
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final String baseUrl;
+    private final List<User> users = new ArrayList<>();
+    private final List<String> buildingIds = new ArrayList<>();
+    private final List<String> bathroomIds = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Document> deletableChats = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger signUps = new AtomicInteger();
+
+    private LoadTest(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String db = options.getOrDefault("db", "memory");
+        double[] rates = Arrays.stream(options.getOrDefault("rate", "200").split(","))
+                .mapToDouble(Double::parseDouble).toArray();
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int userCount = Integer.parseInt(options.getOrDefault("users", "50"));
+        int port = Integer.parseInt(options.getOrDefault("port", "0"));
+        Map<String, Integer> mix = options.containsKey("mix") ? parseMix(options.get("mix")) : DEFAULT_MIX;
+
+        if (!Env.INIT_SUCCESSFUL) {
+            System.err.println("Could not load the .env file or the keys it points to, run this from the project root.");
+            return;
+        }
+
+        MongoServer mongo = null;
+        String dbUrl = db;
+        if (db.equals("memory")) {
+            mongo = new MongoServer(new MemoryBackend());
+            InetSocketAddress address = mongo.bind();
+            dbUrl = "mongodb://" + address.getHostString() + ":" + address.getPort();
+        }
+
+        RequestExecutor executor = new RequestExecutor();
+        HttpServer server = Main.createServer(new InetSocketAddress("localhost", port), executor);
+        DB.start(dbUrl);
+        DBIndexes.ensure(DB.db());
+        Catalog.start();
+        ChatWriter.start();
+        RecentChats.start();
+        server.start();
+
+        try {
+            LoadTest test = new LoadTest("http://localhost:" + server.getAddress().getPort() + "/api/");
+            System.out.println("Seeding " + userCount + " users on " + (mongo != null ? "the in memory database" : db));
+            test.seed(DB.db(), userCount);
+
+            for (double rate : rates) {
+                if (warmup > 0)
+                    test.run(mix, rate, warmup);
+                Map<String, Stats> stats = test.run(mix, rate, duration);
+                report(System.out, rate, duration, stats);
+            }
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+            Catalog.stop();
+            ChatWriter.stop();
+            DB.stop();
+            if (mongo != null)
+                mongo.shutdown();
+        }
+    }
+
+    /**
+     * Creates users, reviews and chats through the API, and buildings and bathrooms directly in the database.
+     */
+    private void seed(MongoDatabase db, int userCount) throws IOException, InterruptedException {
+        Random rand = new Random(1);
+
+        List<Document> buildings = new ArrayList<>();
+        List<Document> bathrooms = new ArrayList<>();
+        for (int i = 0; i < BUILDINGS; i++) {
+            String buildingid = UUID.randomUUID().toString();
+            buildingIds.add(buildingid);
+            buildings.add(new Document("buildingid", buildingid).append("name", "Building #" + i));
+            for (int j = rand.nextInt(1, MAX_BATHROOMS_PER_BUILDING + 1); j > 0; j--) {
+                String bathroomid = UUID.randomUUID().toString();
+                bathroomIds.add(bathroomid);
+                bathrooms.add(new Document("bathroomid", bathroomid)
+                        .append("buildingid", buildingid)
+                        .append("name", (rand.nextBoolean() ? "Men's" : "Women's") + " Bathroom #" + j));
+            }
+        }
+        db.getCollection("buildings").insertMany(buildings);
+        db.getCollection("bathrooms").insertMany(bathrooms);
+        Ratings.rebuild(db); // Also reloads the Catalog.
+
+        for (int i = 0; i < userCount; i++) {
+            Document res = post("signUp", new Document("email", "load" + i + "@example.com")
+                    .append("username", "load" + i)
+                    .append("password", PASSWORD));
+            users.add(new User("load" + i + "@example.com", res.getString("userid"),
+                    res.getString("accessToken"), res.getString("refreshToken")));
+        }
+
+        for (User user : users) {
+            for (int i = 0; i < REVIEWS_PER_USER; i++)
+                post("createReview", new Document("accessToken", user.accessToken)
+                        .append("bathroomid", bathroomIds.get(rand.nextInt(bathroomIds.size())))
+                        .append("rating", rand.nextInt(Ratings.MIN_RATING, Ratings.MAX_RATING + 1))
+                        .append("review", "Seeded review " + i));
+            for (int i = 0; i < CHATS_PER_USER; i++)
+                post("createChat", new Document("accessToken", user.accessToken)
+                        .append("text", "Seeded chat " + i)
+                        .append("anon", rand.nextBoolean()));
+        }
+
+        // deleteChat needs chats that exist and the token of their author, each can only be deleted once.
+        Map<String, User> usersById = new HashMap<>();
+        for (User user : users)
+            usersById.put(user.userid, user);
+        for (Document chat : db.getCollection("chats").find()) {
+            User author = usersById.get(chat.getString("userid"));
+            if (author != null)
+                deletableChats.add(new Document("accessToken", author.accessToken)
+                        .append("chatid", chat.getString("chatid")));
+        }
+    }
+
+    private Document post(String endpoint, Document body) throws IOException, InterruptedException {
+        HttpResponse<String> res = http.send(request(endpoint, body), HttpResponse.BodyHandlers.ofString());
+        if (res.statusCode() != ResponseCodes.OK)
+            throw new IOException("Seeding with " + endpoint + " failed with " + res.statusCode() + ": " + res.body());
+        return res.body().isEmpty() ? new Document() : Document.parse(res.body());
+    }
+
+    private HttpRequest request(String endpoint, Document body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + endpoint))
+                .timeout(Duration.ofSeconds(10))
+                .POST(HttpRequest.BodyPublishers.ofString(body.toJson()))
+                .build();
+    }
+
+    /**
+     * @return The request body for the next request to endpoint, or null if there is nothing left to send to it.
+     */
+    private Document body(String endpoint) {
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        User user = users.get(rand.nextInt(users.size()));
+        String bathroomid = bathroomIds.get(rand.nextInt(bathroomIds.size()));
+        // Most clients only look at the first pages.
+        int page = Page.BASE_NUMBER + (rand.nextInt(4) == 0 ? rand.nextInt(1, 4) : 0);
+
+        return switch (endpoint) {
+            case "signUp" -> {
+                int i = signUps.getAndIncrement();
+                yield new Document("email", "loadSignUp" + i + "@example.com")
+                        .append("username", "loadSignUp" + i)
+                        .append("password", PASSWORD);
+            }
+            case "signIn" -> new Document("email", user.email).append("password", PASSWORD);
+            case "getMyInfo" -> new Document("accessToken", user.accessToken);
+            case "refreshAccess" -> new Document("refreshToken", user.refreshToken);
+            case "getReviews", "getBathroomWithReviews" ->
+                    new Document("bathroomid", bathroomid).append("page", page);
+            case "createReview" -> new Document("accessToken", user.accessToken)
+                    .append("bathroomid", bathroomid)
+                    .append("rating", rand.nextInt(Ratings.MIN_RATING, Ratings.MAX_RATING + 1))
+                    .append("review", "Load test review");
+            case "getBathrooms" -> new Document("buildingid", buildingIds.get(rand.nextInt(buildingIds.size())))
+                    .append("page", page);
+            case "getBuildings", "getBuildingsWithBathrooms", "getChats" -> new Document("page", page);
+            case "createChat" -> new Document("accessToken", user.accessToken)
+                    .append("text", "Load test chat")
+                    .append("anon", rand.nextBoolean());
+            case "deleteChat" -> deletableChats.poll();
+            // What the frontend loads a bathroom's screen with.
+            case "batch" -> new Document("requests", List.of(
+                    new Document("op", "getBuildings"),
+                    new Document("op", "getBathrooms").append("body",
+                            new Document("buildingid", buildingIds.get(rand.nextInt(buildingIds.size())))),
+                    new Document("op", "getBathroomWithReviews").append("body",
+                            new Document("bathroomid", bathroomid).append("page", page))));
+            default -> throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        };
+    }
+
+    /**
+     * Sends requests at rate per second for the given number of seconds and waits for their responses.
+     * @return Stats for each endpoint in mix, followed by "total" for all of them.
+     */
+    private Map<String, Stats> run(Map<String, Integer> mix, double rate, int seconds) throws InterruptedException {
+        String[] endpoints = mix.keySet().toArray(new String[0]);
+        int[] cumulativeWeights = new int[endpoints.length];
+        int totalWeight = 0;
+        for (int i = 0; i < endpoints.length; i++)
+            cumulativeWeights[i] = totalWeight += mix.get(endpoints[i]);
+
+        Map<String, Stats> stats = new LinkedHashMap<>();
+        for (String endpoint : endpoints)
+            stats.put(endpoint, new Stats());
+        Stats total = new Stats();
+
+        ThreadLocalRandom rand = ThreadLocalRandom.current();
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        double meanGapNanos = 1e9 / rate;
+        long due = start;
+        while (true) {
+            due += (long) (-Math.log(1 - rand.nextDouble()) * meanGapNanos);
+            if (due >= end)
+                break;
+            long wait = due - System.nanoTime();
+            if (wait > 0)
+                LockSupport.parkNanos(wait);
+
+            int pick = rand.nextInt(totalWeight);
+            int i = 0;
+            while (cumulativeWeights[i] <= pick)
+                i++;
+            Stats endpointStats = stats.get(endpoints[i]);
+            Document body = body(endpoints[i]);
+            if (body == null) {
+                endpointStats.skipped.increment();
+                continue;
+            }
+
+            long dueNanos = due;
+            pending.add(http.sendAsync(request(endpoints[i], body), HttpResponse.BodyHandlers.discarding())
+                    .handle((res, ex) -> {
+                        int status = res == null ? -1 : res.statusCode();
+                        long latency = System.nanoTime() - dueNanos;
+                        endpointStats.record(status, latency);
+                        total.record(status, latency);
+                        return null;
+                    }));
+        }
+
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+        stats.put("total", total);
+        return stats;
+    }
+
+    private static void report(PrintStream out, double rate, int seconds, Map<String, Stats> stats) {
+        out.printf("%nTarget rate %.0f/s for %ds (latency from when each request was due)%n", rate, seconds);
+        out.printf("%-26s %8s %8s %7s %7s %7s %7s %9s %9s %9s %9s %9s%n", "endpoint", "count", "rate/s",
+                "2xx", "4xx", "5xx", "failed", "p50 ms", "p90 ms", "p99 ms", "p999 ms", "max ms");
+        for (Map.Entry<String, Stats> entry : stats.entrySet())
+            print(out, entry.getKey(), entry.getValue(), seconds);
+        for (Map.Entry<String, Stats> entry : stats.entrySet())
+            if (entry.getValue().skipped.sum() > 0)
+                out.println(entry.getKey() + ": " + entry.getValue().skipped.sum()
+                        + " requests not sent because there was nothing left to send them for.");
+    }
+
+    private static void print(PrintStream out, String name, Stats stats, int seconds) {
+        long[] snapshot = stats.latency.snapshot();
+        Function<Double, Double> ms = q -> Metrics.Histogram.quantile(snapshot, q) / 1_000.0;
+        long count = stats.count.sum();
+        out.printf("%-26s %8d %8.1f %7d %7d %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, count,
+                (double) count / seconds, stats.statusClasses[2].sum(), stats.statusClasses[4].sum(),
+                stats.statusClasses[5].sum(), stats.statusClasses[0].sum(),
+                ms.apply(0.5), ms.apply(0.9), ms.apply(0.99), ms.apply(0.999), ms.apply(1.0));
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Expected an option but got " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.split("=");
+            weights.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+        }
+        return weights;
+    }
+
+    private record User(String email, String userid, String accessToken, String refreshToken) { }
+
+    private static class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder skipped = new LongAdder();
+        // Index 0 counts requests that got no response (connection errors and timeouts).
+        final LongAdder[] statusClasses = new LongAdder[6];
+        final Metrics.Histogram latency = new Metrics.Histogram();
+
+        Stats() {
+            for (int i = 0; i < statusClasses.length; i++)
+                statusClasses[i] = new LongAdder();
+        }
+
+        void record(int status, long nanos) {
+            count.increment();
+            int statusClass = status / 100;
+            statusClasses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+            latency.record(nanos / 1_000);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token verification, generation and cookie parsing, which every authenticated request goes through.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuthBenchmark {
+    private static final MethodHandle VERIFY = Src.method("Auth", "verify", String.class);
+    private static final MethodHandle VERIFY_ACCESS = Src.method("Auth", "verifyAccess", String.class);
+    private static final MethodHandle GEN_ACCESS_TOKEN = Src.method("Auth", "genAccessToken", String.class);
+    private static final MethodHandle GEN_REFRESH_TOKEN = Src.method("Auth", "genRefreshToken", String.class);
+    private static final MethodHandle ACCESS_FROM_COOKIES = Src.method("Auth", "accessFromCookies", List.class);
+    private static final MethodHandle REFRESH_FROM_COOKIES = Src.method("Auth", "refreshFromCookies", List.class);
+
+    private String accessToken;
+    private List<String> cookies;
+
+    @Setup
+    public void setup() throws Throwable {
+        Src.requireEnv();
+        accessToken = (String) GEN_ACCESS_TOKEN.invoke("1");
+        String refreshToken = (String) GEN_REFRESH_TOKEN.invoke("1");
+        // A browser sends every cookie of the site, not just ours.
+        cookies = List.of("theme=dark; AccessToken=" + accessToken + "; RefreshToken=" + refreshToken
+                + "; _ga=GA1.1.1234567890.1700000000");
+        VERIFY_ACCESS.invoke(accessToken); // Puts it in the token cache.
+    }
+
+    /**
+     * A token that was already verified, as on every request after a user's first.
+     */
+    @Benchmark
+    public Object verifyAccessCached() throws Throwable {
+        return VERIFY_ACCESS.invoke(accessToken);
+    }
+
+    /**
+     * A full RSA signature check, as on a user's first request or a token cache miss.
+     */
+    @Benchmark
+    public Object verifyUncached() throws Throwable {
+        return VERIFY.invoke(accessToken);
+    }
+
+    @Benchmark
+    public Object genAccessToken() throws Throwable {
+        return GEN_ACCESS_TOKEN.invoke("1");
+    }
+
+    @Benchmark
+    public Object accessFromCookies() throws Throwable {
+        return ACCESS_FROM_COOKIES.invoke(cookies);
+    }
+
+    @Benchmark
+    public Object refreshFromCookies() throws Throwable {
+        return REFRESH_FROM_COOKIES.invoke(cookies);
+    }
+}
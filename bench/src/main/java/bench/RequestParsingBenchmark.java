@@ -0,0 +1,56 @@
+package bench;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a request body, which every handler starts with: binding it with RequestBody against reading all of it into
+ * a Document as handlers used to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestParsingBenchmark {
+    private static final MethodHandle READ = Src.method("RequestBody", "read", InputStream.class, long.class);
+    private static final MethodHandle BIND_CREATE_REVIEW =
+            Src.method("Requests$CreateReview", "of", Src.type("RequestBody$Fields"));
+
+    /**
+     * Length of the review text, a short review or one near the size of a long chat message.
+     */
+    @Param({ "64", "4096" })
+    public int textLength;
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        // A createReview request, with an access token as long as a real one.
+        body = ("{\"accessToken\": \"" + "x".repeat(600) + "\", \"bathroomid\": \"12\", \"rating\": 4, "
+                + "\"review\": \"" + "Clean and quiet. ".repeat(textLength / 17 + 1).substring(0, textLength) + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object readRequest() throws Throwable {
+        Object fields = READ.invoke((InputStream) new ByteArrayInputStream(body), (long) body.length);
+        return BIND_CREATE_REVIEW.invoke(fields);
+    }
+
+    @Benchmark
+    public Object documentParse() throws IOException {
+        try (InputStream in = new ByteArrayInputStream(body)) {
+            return Document.parse(new String(in.readAllBytes()));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package bench;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a page of chats as a JSON array. The legacy benchmarks encode them as Documents the ways getChats used to,
+ * kept as a baseline for JsonOutput writing the records, as ReqHandlers encodes list responses.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseEncodingBenchmark {
+    private static final Class<?> CHAT = Src.type("Chat");
+    private static final Class<?> JSON_OUTPUT = Src.type("JsonOutput");
+    private static final MethodHandle NEW_CHAT = Src.constructor("Chat", ObjectId.class, String.class, String.class,
+            Date.class, String.class, boolean.class, String.class);
+    private static final MethodHandle NEW_CHAT_WITH_USERNAME =
+            Src.constructor("Chat$WithUsername", CHAT, String.class);
+    private static final MethodHandle NEW_OUTPUT = Src.constructor("JsonOutput", OutputStream.class);
+    private static final MethodHandle BEGIN_ARRAY = Src.method("JsonOutput", "beginArray");
+    private static final MethodHandle END_ARRAY = Src.method("JsonOutput", "endArray");
+    private static final MethodHandle CLOSE = Src.method("JsonOutput", "close");
+    private static final MethodHandle WRITE = Src.method("Chat$WithUsername", "writeJson", JSON_OUTPUT);
+
+    private static final JsonWriterSettings JSON_SETTINGS =
+            JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+    private static final Codec<Document> DOCUMENT_CODEC =
+            MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+
+    @Param({ "10", "100" })
+    public int items;
+
+    private List<Document> chatDocs;
+    private List<Object> chats;
+
+    @Setup
+    public void setup() throws Throwable {
+        chatDocs = new ArrayList<>(items);
+        chats = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            ObjectId id = new ObjectId();
+            Date createdAt = new Date();
+            String text = "Does anyone know if the third floor bathroom in the library is open?";
+            chatDocs.add(new Document("_id", id)
+                    .append("userid", Integer.toString(i % 7))
+                    .append("text", text)
+                    .append("createdAt", createdAt)
+                    .append("datetime", "16 Oct 2026 19:40:55")
+                    .append("anon", false)
+                    .append("chatid", Integer.toString(i))
+                    .append("username", "user" + i % 7));
+            Object chat = NEW_CHAT.invoke(id, Integer.toString(i % 7), text, createdAt, "16 Oct 2026 19:40:55",
+                    false, Integer.toString(i));
+            chats.add(NEW_CHAT_WITH_USERNAME.invoke(chat, "user" + i % 7));
+        }
+    }
+
+    /**
+     * Document.toJson() of each chat joined in a StringBuilder.
+     */
+    @Benchmark
+    public byte[] legacyStringBuilder() {
+        StringBuilder sb = new StringBuilder("[");
+        for (Document d : chatDocs)
+            sb.append(d.toJson()).append(", ");
+        if (sb.length() > 1) sb.delete(sb.length() - 2, sb.length());
+        sb.append("]");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The driver's JsonWriter encoding each chat Document into a Writer over the response body, as
+     * the list handlers used to.
+     */
+    @Benchmark
+    public long legacyBsonJsonWriter() throws Exception {
+        NullExchange e = new NullExchange();
+        e.sendResponseHeaders(200, 0);
+        try (Writer writer = new OutputStreamWriter(e.getResponseBody(), StandardCharsets.UTF_8)) {
+            writer.write("[");
+            boolean first = true;
+            for (Document d : chatDocs) {
+                if (!first)
+                    writer.write(", ");
+                first = false;
+                DOCUMENT_CODEC.encode(new JsonWriter(writer, JSON_SETTINGS), d, EncoderContext.builder().build());
+            }
+            writer.write("]");
+        }
+        return e.written;
+    }
+
+    /**
+     * JsonOutput writing each chat record into the response, as ReqHandlers.closeOutList does.
+     */
+    @Benchmark
+    public byte[] jsonOutput() throws Throwable {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        Object out = NEW_OUTPUT.invoke((OutputStream) response);
+        BEGIN_ARRAY.invoke(out);
+        for (Object chat : chats)
+            WRITE.invoke(chat, out);
+        END_ARRAY.invoke(out);
+        CLOSE.invoke(out);
+        return response.toByteArray();
+    }
+}
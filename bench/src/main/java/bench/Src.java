@@ -0,0 +1,68 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * The backend is in the default package, which JMH benchmarks can not be in and other packages can not import, so
+ * the benchmarks reach it through method handles. Handles kept in static final fields are constants to the JIT,
+ * so calling through them costs about as much as a direct call.
+ */
+final class Src {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private Src() { }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Backend class " + className + " not found.", e);
+        }
+    }
+
+    /**
+     * @return A handle to a static or instance method of the backend, which may be private.
+     */
+    static MethodHandle method(String className, String name, Class<?>... params) {
+        try {
+            Method m = type(className).getDeclaredMethod(name, params);
+            m.setAccessible(true);
+            return LOOKUP.unreflect(m);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Backend method " + className + "." + name + " not found.", e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... params) {
+        try {
+            Constructor<?> c = type(className).getDeclaredConstructor(params);
+            c.setAccessible(true);
+            return LOOKUP.unreflectConstructor(c);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Backend constructor of " + className + " not found.", e);
+        }
+    }
+
+    static Object staticField(String className, String name) {
+        try {
+            Field f = type(className).getDeclaredField(name);
+            f.setAccessible(true);
+            return f.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Backend field " + className + "." + name + " not found.", e);
+        }
+    }
+
+    /**
+     * Fails the benchmark early if the .env file (and the keys it points to) could not be loaded.
+     */
+    static void requireEnv() {
+        if (!(Boolean) staticField("Env", "INIT_SUCCESSFUL"))
+            throw new IllegalStateException(
+                    "Could not load the .env file or the keys it points to, run the benchmarks from the project root.");
+    }
+}
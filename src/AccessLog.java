@@ -0,0 +1,275 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Writes one line per request (method, path, status, bytes and duration) to ACCESS_LOG_FILE, or standard out if it
+ * is not set. Request threads only put a record in a lock free ring buffer of ACCESS_LOG_BUFFER records, a background
+ * thread formats and writes them. If the ring buffer is full the record is dropped instead of making the request wait.
+ * <p>
+ * ACCESS_LOG_BODY_SAMPLE (between 0 and 1, default 0) is the fraction of requests whose request and response bodies
+ * are logged too, up to ACCESS_LOG_BODY_MAX bytes each. Passwords and tokens in logged bodies are redacted.
+ * Set ACCESS_LOG=off to disable the access log entirely.
+ */
+public class AccessLog {
+    private static final boolean ENABLED = !"off".equalsIgnoreCase(Env.get("ACCESS_LOG"));
+    private static final double BODY_SAMPLE = Env.getDouble("ACCESS_LOG_BODY_SAMPLE", 0);
+    private static final int BODY_MAX = Env.getInt("ACCESS_LOG_BODY_MAX", 1024);
+    // The value of a secret field up to its closing quote, or to the end of the body if that was cut off inside it (even
+    // right after a backslash), e.g. {"password":"hunt becomes {"password":"***".
+    private static final Pattern SECRET_FIELDS = Pattern.compile(
+            "(\"(?:password|accessToken|refreshToken)\"\\s*:\\s*)\"(?:[^\"\\\\]|\\\\.)*(?:\"|\\\\?$)");
+
+    private static final Ring RING = new Ring(Env.getInt("ACCESS_LOG_BUFFER", 8192));
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile boolean running = false;
+    private static Thread writer;
+
+    public static synchronized void start() {
+        if (!ENABLED || running)
+            return;
+
+        PrintStream out = System.out;
+        String file = Env.get("ACCESS_LOG_FILE");
+        if (file != null && !file.isBlank()) {
+            try {
+                out = new PrintStream(new FileOutputStream(file, true), false, StandardCharsets.UTF_8);
+            } catch (FileNotFoundException e) {
+                System.err.println("Could not open ACCESS_LOG_FILE, logging to standard out instead: " + e);
+            }
+        }
+
+        running = true;
+        PrintStream finalOut = out;
+        writer = new Thread(() -> writeLoop(finalOut), "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the background writer after it has written every record already in the buffer.
+     */
+    public static synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Wraps the request and response bodies of the exchange to count their bytes (and capture them if the exchange
+     * was sampled). Must be called before the handler reads the request or writes the response.
+     */
+    public static Exchange begin(HttpExchange e) {
+        boolean sampled = ENABLED && BODY_SAMPLE > 0 && ThreadLocalRandom.current().nextDouble() < BODY_SAMPLE;
+        Exchange exchange = new Exchange(System.nanoTime(),
+                new CountingInputStream(e.getRequestBody(), sampled ? BODY_MAX : 0),
+                new CountingOutputStream(e.getResponseBody(), sampled ? BODY_MAX : 0));
+        e.setStreams(exchange.in, exchange.out);
+        return exchange;
+    }
+
+    public static void end(HttpExchange e, Exchange exchange) {
+        if (!running)
+            return;
+
+        Record record = new Record(
+                Instant.now(), e.getRequestMethod(), e.getRequestURI().getPath(), e.getResponseCode(),
+                exchange.in.count, exchange.out.count, exchange.elapsedNanos(),
+                exchange.in.captured(), exchange.out.captured());
+        if (!RING.offer(record))
+            dropped.increment();
+    }
+
+    private static void writeLoop(PrintStream out) {
+        StringBuilder sb = new StringBuilder(256);
+        while (true) {
+            Record record = RING.poll();
+            if (record == null) {
+                out.flush();
+                if (!running)
+                    return;
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+
+            sb.setLength(0);
+            sb.append("time=").append(record.time)
+                    .append(" method=").append(record.method)
+                    .append(" path=").append(record.path)
+                    .append(" status=").append(record.status)
+                    .append(" reqBytes=").append(record.reqBytes)
+                    .append(" resBytes=").append(record.resBytes)
+                    .append(" durMs=").append(String.format("%.3f", record.durationNanos / 1_000_000.0));
+            if (record.reqBody != null)
+                sb.append(" reqBody=").append(quote(redact(record.reqBody)));
+            if (record.resBody != null)
+                sb.append(" resBody=").append(quote(redact(record.resBody)));
+            out.println(sb);
+        }
+    }
+
+    private static String redact(String body) {
+        return SECRET_FIELDS.matcher(body).replaceAll("$1\"***\"");
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n").replace("\r", "\\r") + '"';
+    }
+
+    public record Exchange(long startNanos, CountingInputStream in, CountingOutputStream out) {
+        public long elapsedNanos() {
+            return System.nanoTime() - startNanos;
+        }
+    }
+
+    private record Record(Instant time, String method, String path, int status, long reqBytes, long resBytes,
+                          long durationNanos, String reqBody, String resBody) { }
+
+    /**
+     * Bounded multi producer single consumer ring buffer. Each slot has a sequence number telling whether it is free
+     * for the producer at a given position or holds a record for the consumer, so neither side needs a lock.
+     */
+    private static class Ring {
+        private final Record[] records;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private long head = 0; // Only used by the consumer.
+
+        Ring(int minCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+            records = new Record[capacity];
+            sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++)
+                sequences.set(i, i);
+            mask = capacity - 1;
+        }
+
+        boolean offer(Record record) {
+            long pos = tail.get();
+            while (true) {
+                int index = (int) (pos & mask);
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        records[index] = record;
+                        sequences.set(index, pos + 1);
+                        return true;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    return false; // Full.
+                } else {
+                    pos = tail.get();
+                }
+            }
+        }
+
+        Record poll() {
+            int index = (int) (head & mask);
+            if (sequences.get(index) != head + 1)
+                return null;
+            Record record = records[index];
+            records[index] = null;
+            sequences.set(index, head + records.length);
+            head++;
+            return record;
+        }
+    }
+
+    public static class CountingInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream capture;
+        private final int captureMax;
+        private long count = 0;
+
+        CountingInputStream(InputStream in, int captureMax) {
+            super(in);
+            this.captureMax = captureMax;
+            capture = captureMax > 0 ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+                if (capture != null && capture.size() < captureMax)
+                    capture.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+                if (capture != null)
+                    capture.write(b, off, Math.min(n, captureMax - capture.size()));
+            }
+            return n;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        String captured() {
+            return capture == null ? null : capture.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static class CountingOutputStream extends FilterOutputStream {
+        private final ByteArrayOutputStream capture;
+        private final int captureMax;
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out, int captureMax) {
+            super(out);
+            this.captureMax = captureMax;
+            capture = captureMax > 0 ? new ByteArrayOutputStream() : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+            if (capture != null && capture.size() < captureMax)
+                capture.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+            if (capture != null)
+                capture.write(b, off, Math.min(len, captureMax - capture.size()));
+        }
+
+        public long count() {
+            return count;
+        }
+
+        String captured() {
+            return capture == null ? null : capture.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
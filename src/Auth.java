@@ -1,54 +1,81 @@
 import com.auth0.jwt.JWT;
 import com.auth0.jwt.algorithms.Algorithm;
+import com.auth0.jwt.JWTVerifier;
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
-import com.mongodb.client.MongoClient;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Updates;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.jetbrains.annotations.NotNull;
-import org.mindrot.jbcrypt.BCrypt;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Auth {
+    private static final int ACCESS_CACHE_SIZE = Env.getInt("TOKEN_CACHE_SIZE", 10_000);
+    private static final ConcurrentHashMap<String, DecodedJWT> ACCESS_CACHE = new ConcurrentHashMap<>();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
+
     public static Tokens signUp(String email, String username, String password)
-            throws DuplicateEmail, DuplicateUsername, InternalError, InvalidEmail, InvalidUsername, InvalidPassword {
+            throws DuplicateEmail, DuplicateUsername, InternalError, InvalidEmail, InvalidUsername, InvalidPassword, Busy {
         if (!validateEmail(email)) throw new InvalidEmail();
         if (!validateUsername(username)) throw new InvalidUsername();
         if (!validatePassword(password)) throw new InvalidPassword();
 
-        try (MongoClient client = DB.client()) {
-            MongoDatabase db = DB.db(client);
-            if (db.getCollection("users").find(new Document("email", email)).first() != null)
+        MongoDatabase db = DB.db();
+        MongoCollection<User> users = db.getCollection("users", User.class);
+        if (users.find(new Document("email", email)).first() != null)
+            throw new DuplicateEmail();
+        if (users.find(new Document("username", username)).first() != null)
+            throw new DuplicateUsername();
+
+        User user = createNewUser(email, username, password, db);
+        try {
+            users.insertOne(user);
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY)
+                throw e;
+            // Another sign up with the same email or username was inserted after the checks above.
+            if (users.find(new Document("email", email)).first() != null)
                 throw new DuplicateEmail();
-            if (db.getCollection("users").find(new Document("username", username)).first() != null)
+            if (users.find(new Document("username", username)).first() != null)
                 throw new DuplicateUsername();
-
-            Document userDoc = createNewUserDoc(email, username, password, db);
-            db.getCollection("users").insertOne(userDoc);
-
-            return genTokens(userDoc.getString("userid"), username);
+            throw new InternalError(); // The userid was taken in the meantime.
         }
+
+        return genTokens(user.userid(), username);
     }
 
-    public static Tokens signIn(String email, String password) throws UserNotFound, IncorrectPassword {
-        Document userdata;
-        try (MongoClient client = DB.client()) {
-            MongoDatabase db = DB.db(client);
-            userdata = db.getCollection("users").find(new Document("email", email)).first();
-        }
+    public static Tokens signIn(String email, String password)
+            throws UserNotFound, IncorrectPassword, Busy, InternalError {
+        User user = DB.db().getCollection("users", User.class).find(new Document("email", email)).first();
 
-        if (userdata == null)
+        if (user == null)
             throw new UserNotFound();
-        if (!userdata.getString("password").equals(BCrypt.hashpw(password, userdata.getString("salt"))))
+        String hash = user.password();
+        if (!PasswordHasher.check(password, hash))
             throw new IncorrectPassword();
 
-        return genTokens(userdata.getString("userid"), userdata.getString("username"));
+        // Transparently move the user to the current cost now that we know their password.
+        if (PasswordHasher.needsRehash(hash)) {
+            String userid = user.userid();
+            PasswordHasher.hashLater(password, newHash -> DB.db().getCollection("users").updateOne(
+                    new Document("userid", userid).append("password", hash),
+                    Updates.combine(Updates.set("password", newHash), Updates.unset("salt"))));
+        }
+
+        return genTokens(user.userid(), user.username());
     }
 
     public static String refreshAccess(@NotNull String refreshToken) throws JWTVerificationException, TokenIsNotRefresh {
@@ -58,16 +85,41 @@ public class Auth {
     }
 
     public static DecodedJWT verify(@NotNull String token) throws JWTVerificationException {
-        return JWT.require(Algorithm.RSA256(Env.PUBLIC_KEY, null)).build().verify(token);
+        return Keys.VERIFIER.verify(token);
     }
 
+    /**
+     * Access tokens that were already verified are served from a cache until they expire, which skips checking
+     * the RSA signature again on every request of an active session.
+     */
     public static DecodedJWT verifyAccess(@NotNull String token) throws JWTVerificationException, TokenIsNotAccess {
+        String key = hashToken(token);
+        DecodedJWT cached = ACCESS_CACHE.get(key);
+        if (cached != null) {
+            if (cached.getExpiresAt().getTime() > System.currentTimeMillis()) {
+                cacheHits.increment();
+                return cached;
+            }
+            ACCESS_CACHE.remove(key);
+        }
+        cacheMisses.increment();
+
         DecodedJWT jwt = verify(token);
         if (!jwt.getClaim("type").asString().equals("access"))
             throw new TokenIsNotAccess();
+
+        if (jwt.getExpiresAt() != null) {
+            if (ACCESS_CACHE.size() >= ACCESS_CACHE_SIZE)
+                evictAccessCache();
+            ACCESS_CACHE.put(key, jwt);
+        }
         return jwt;
     }
 
+    public static TokenCacheStats tokenCacheStats() {
+        return new TokenCacheStats(cacheHits.sum(), cacheMisses.sum(), ACCESS_CACHE.size(), ACCESS_CACHE_SIZE);
+    }
+
     public static DecodedJWT verifyRefresh(@NotNull String token) throws JWTVerificationException, TokenIsNotRefresh {
         DecodedJWT jwt = verify(token);
         if (!jwt.getClaim("type").asString().equals("refresh"))
@@ -80,16 +132,10 @@ public class Auth {
      * Does not add this document to the database.
      * db is used to get a unique userid (assuming all userids are already in the users table).
      */
-    public static Document createNewUserDoc(String email, String username, String password, MongoDatabase db)
-            throws InternalError {
-        String salt = BCrypt.gensalt();
-        return new Document()
-                .append("_id", new ObjectId())
-                .append("userid", DB.getNewUserId(db))
-                .append("email", email)
-                .append("username", username)
-                .append("password", BCrypt.hashpw(password, salt))
-                .append("salt", salt);
+    public static User createNewUser(String email, String username, String password, MongoDatabase db)
+            throws InternalError, Busy {
+        // The salt is part of the BCrypt hash, so it is not stored separately.
+        return new User(new ObjectId(), DB.getNewUserId(db), email, username, PasswordHasher.hash(password));
     }
 
     public static String accessFromCookies(List<String> cookiesList) {
@@ -142,7 +188,7 @@ public class Auth {
                 // TODO: This could be different when hosted on Google's VMs.
                 // For some reason this has to be in EST (aka UTC-5) maybe because that is the backend's timezone?
                 .withExpiresAt(Date.from(LocalDateTime.now().plusHours(1).toInstant(ZoneOffset.ofHours(-5))))
-                .sign(Algorithm.RSA256(Env.PUBLIC_KEY, Env.PRIVATE_KEY));
+                .sign(Keys.ALGORITHM);
     }
 
     private static String genRefreshToken(String userid) {
@@ -152,7 +198,34 @@ public class Auth {
                 // TODO: This could be different when hosted on Google's VMs.
                 // For some reason this has to be in EST (aka UTC-5) maybe because that is the backend's timezone?
                 .withExpiresAt(Date.from(LocalDateTime.now().plusDays(30).toInstant(ZoneOffset.ofHours(-5))))
-                .sign(Algorithm.RSA256(Env.PUBLIC_KEY, Env.PRIVATE_KEY));
+                .sign(Keys.ALGORITHM);
+    }
+
+    /**
+     * The cache is keyed by a hash of the token so that it does not hold on to the tokens themselves.
+     */
+    private static String hashToken(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Every JVM is required to support SHA-256.
+        }
+    }
+
+    /**
+     * Removes the expired tokens from the cache, and if that is not enough to make room, an arbitrary tenth of it.
+     */
+    private static void evictAccessCache() {
+        long now = System.currentTimeMillis();
+        ACCESS_CACHE.values().removeIf(jwt -> jwt.getExpiresAt().getTime() <= now);
+
+        int toEvict = ACCESS_CACHE.size() - ACCESS_CACHE_SIZE + ACCESS_CACHE_SIZE / 10;
+        Iterator<String> keys = ACCESS_CACHE.keySet().iterator();
+        while (toEvict-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
     }
 
     private static boolean validateEmail(String email) {
@@ -172,8 +245,28 @@ public class Auth {
 
     public record Tokens(String accessToken, String refreshToken, String userid, String username) { }
 
+    public record TokenCacheStats(long hits, long misses, int size, int maxSize) {
+        @Override
+        public String toString() {
+            long total = hits + misses;
+            return "hits=" + hits + " misses=" + misses
+                    + " hitRate=" + (total == 0 ? "n/a" : String.format("%.1f%%", 100.0 * hits / total))
+                    + " size=" + size + "/" + maxSize;
+        }
+    }
+
+    /**
+     * Holds the algorithm and verifier, which are thread safe, so that they are only built once.
+     * They are in their own class so that they are only built on first use, after Env has loaded the keys.
+     */
+    private static class Keys {
+        private static final Algorithm ALGORITHM = Algorithm.RSA256(Env.PUBLIC_KEY, Env.PRIVATE_KEY);
+        private static final JWTVerifier VERIFIER = JWT.require(ALGORITHM).build();
+    }
+
     public static class AuthException extends Exception { }
     public static class InternalError extends AuthException { }
+    public static class Busy extends AuthException { }
     public static class UserNotFound extends AuthException { }
     public static class DuplicateEmail extends AuthException { }
     public static class DuplicateUsername extends AuthException { }
@@ -0,0 +1,317 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.*;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Runs several read requests sent to /api/batch in one round trip, e.g. all the calls a screen of the frontend is
+ * loaded with. The body is {"requests": [{"op": "getBuildings", "body": {...}}, ...]} with at most
+ * BATCH_MAX_REQUESTS requests (default 16), where op is one of OPS and body is what that endpoint takes (empty if
+ * missing). The whole body is still bounded by REQUEST_MAX_BYTES.
+ * <p>
+ * Each request is handled by its handler in ReqHandlers on an in memory exchange, at most BATCH_CONCURRENCY
+ * (default 4) at a time per batch, each on its own virtual thread. The results are in the order of the requests, with
+ * the status code and body the handler answered. Requests not answered BATCH_TIMEOUT_MS (default 5000) after the batch
+ * started are interrupted and get a 504 instead.
+ * <p>
+ * A batch counts as one request against SERVER_MAX_IN_FLIGHT (see RequestExecutor), its requests do not count on their
+ * own: they only run while the batch holds its slot, and at most BATCH_CONCURRENCY of them, so a full server runs at
+ * most SERVER_MAX_IN_FLIGHT * BATCH_CONCURRENCY handlers at once. Lower BATCH_CONCURRENCY to bound that.
+ */
+public class Batch {
+    public static final int MAX_REQUESTS = Env.getInt("BATCH_MAX_REQUESTS", 16);
+    private static final int CONCURRENCY = Env.getInt("BATCH_CONCURRENCY", 4);
+    private static final long TIMEOUT_MS = Env.getLong("BATCH_TIMEOUT_MS", 5_000);
+
+    // Only endpoints without side effects, so that it does not matter in which order they run, or if they are cut off.
+    private static final Map<String, HttpHandler> OPS = new LinkedHashMap<>();
+
+    static {
+        OPS.put("getMyInfo", ReqHandlers::getMyInfo);
+        OPS.put("getReviews", ReqHandlers::getReviews);
+        OPS.put("getBathrooms", ReqHandlers::getBathrooms);
+        OPS.put("getBuildings", ReqHandlers::getBuildings);
+        OPS.put("getBuildingsWithBathrooms", ReqHandlers::getBuildingsWithBathrooms);
+        OPS.put("getBathroomWithReviews", ReqHandlers::getBathroomWithReviews);
+        OPS.put("getChats", ReqHandlers::getChats);
+    }
+
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+    private static final byte[] EMPTY_BODY = "{}".getBytes(StandardCharsets.UTF_8);
+    private static final Result TIMED_OUT = new Result(ResponseCodes.GATEWAY_TIMEOUT,
+            "{ \"error\": \"Not answered before the batch timed out.\" }".getBytes(StandardCharsets.UTF_8));
+    private static final Result NOT_ANSWERED = new Result(ResponseCodes.INTERNAL_SERVER_ERROR,
+            "{ \"error\": \"Internal error occurred (no fault of the client).\" }".getBytes(StandardCharsets.UTF_8));
+
+    /**
+     * Reads the requests of a batch from the request body of e (see RequestBody), and closes it.
+     * @throws RequestBody.TooLarge If the body is over REQUEST_MAX_BYTES.
+     * @throws RequestBody.Invalid If the body is not a valid batch.
+     */
+    public static List<Request> read(HttpExchange e) throws IOException, RequestBody.Invalid {
+        return RequestBody.read(e, Batch::readRequests);
+    }
+
+    /**
+     * Runs the requests, and waits until they are all answered or the batch timed out.
+     * @param e The exchange of the batch, the requests are answered as if they came from the same client.
+     * @return The result of each request, in the same order.
+     */
+    public static List<Result> run(HttpExchange e, List<Request> requests) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        Semaphore slots = new Semaphore(CONCURRENCY);
+        List<Future<Result>> futures = new ArrayList<>(requests.size());
+        List<Result> results = new ArrayList<>(requests.size());
+        try {
+            for (Request request : requests) {
+                if (!slots.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    break;
+                futures.add(EXECUTOR.submit(() -> {
+                    try {
+                        return run(e, request);
+                    } finally {
+                        slots.release();
+                    }
+                }));
+            }
+
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+                } catch (TimeoutException ex) {
+                    results.add(TIMED_OUT);
+                } catch (ExecutionException ex) {
+                    ReqHandlers.printException(e, ex, "A request of a batch failed.");
+                    results.add(NOT_ANSWERED);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Interrupts the requests that are still running.
+            for (Future<Result> future : futures)
+                future.cancel(true);
+        }
+
+        while (results.size() < requests.size())
+            results.add(TIMED_OUT);
+        return results;
+    }
+
+    private static Result run(HttpExchange batch, Request request) {
+        RequestExchange e = new RequestExchange(batch, request);
+        try (e) {
+            OPS.get(request.op()).handle(e);
+        } catch (Exception ex) {
+            ReqHandlers.printException(e, ex, "This exception was uncaught by a handler of a batch request.");
+        }
+        return e.result();
+    }
+
+    private static List<Request> readRequests(JsonParser parser) throws IOException, RequestBody.Invalid {
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+            throw new RequestBody.Invalid("The request body must be a JSON object.");
+
+        List<Request> requests = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if (!name.equals("requests")) {
+                parser.skipChildren();
+                continue;
+            }
+            if (token != JsonToken.START_ARRAY)
+                throw new RequestBody.Invalid("requests must be an array.");
+
+            requests = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (requests.size() == MAX_REQUESTS)
+                    throw new RequestBody.Invalid("A batch can have at most " + MAX_REQUESTS + " requests.");
+                requests.add(readRequest(parser, "requests[" + requests.size() + "]"));
+            }
+        }
+        if (requests == null)
+            throw new RequestBody.Invalid("requests is missing.");
+        return requests;
+    }
+
+    private static Request readRequest(JsonParser parser, String path) throws IOException, RequestBody.Invalid {
+        if (parser.currentToken() != JsonToken.START_OBJECT)
+            throw new RequestBody.Invalid(path + " must be an object.");
+
+        String op = null;
+        byte[] body = EMPTY_BODY;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (name) {
+                case "op" -> {
+                    if (token != JsonToken.VALUE_STRING)
+                        throw new RequestBody.Invalid(path + ".op must be a string.");
+                    op = parser.getText();
+                }
+                case "body" -> {
+                    if (token != JsonToken.START_OBJECT)
+                        throw new RequestBody.Invalid(path + ".body must be an object.");
+                    body = RequestBody.copyValue(parser);
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        if (op == null)
+            throw new RequestBody.Invalid(path + ".op is missing.");
+        if (!OPS.containsKey(op))
+            throw new RequestBody.Invalid(path + ".op must be one of " + String.join(", ", OPS.keySet()) + ".");
+        return new Request(op, body);
+    }
+
+    /**
+     * @param body The request body for the endpoint, as JSON.
+     */
+    public record Request(String op, byte[] body) { }
+
+    /**
+     * @param body The response body, as JSON, or null if the handler answered without one.
+     */
+    public record Result(int status, byte @Nullable [] body) implements JsonOutput.Writable {
+        @Override
+        public void writeJson(JsonOutput out) throws IOException {
+            out.beginObject().field("status", status).name("body");
+            if (body == null || body.length == 0)
+                out.nullValue();
+            else
+                out.rawValue(body, 0, body.length);
+            out.endObject();
+        }
+    }
+
+    /**
+     * The exchange a request of a batch is handled with: a POST of its body to its endpoint, with the response kept
+     * in memory. Everything about the connection is the same as for the batch. Its attributes are its own, those of
+     * the batch are only read through when it has none of that name.
+     */
+    private static class RequestExchange extends HttpExchange {
+        private final HttpExchange batch;
+        private final URI uri;
+        private final Headers requestHeaders = new Headers();
+        private final Headers responseHeaders = new Headers();
+        private InputStream in;
+        private OutputStream out;
+        private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private int responseCode = -1;
+
+        RequestExchange(HttpExchange batch, Request request) {
+            this.batch = batch;
+            this.uri = URI.create("/api/" + request.op());
+            requestHeaders.set("Content-Length", Integer.toString(request.body().length));
+            in = new ByteArrayInputStream(request.body());
+            out = response;
+        }
+
+        Result result() {
+            return responseCode == -1 ? NOT_ANSWERED : new Result(responseCode, response.toByteArray());
+        }
+
+        @Override
+        public Headers getRequestHeaders() {
+            return requestHeaders;
+        }
+
+        @Override
+        public Headers getResponseHeaders() {
+            return responseHeaders;
+        }
+
+        @Override
+        public URI getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return "POST";
+        }
+
+        @Override
+        public HttpContext getHttpContext() {
+            return batch.getHttpContext();
+        }
+
+        @Override
+        public void close() { }
+
+        @Override
+        public InputStream getRequestBody() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getResponseBody() {
+            return out;
+        }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) {
+            responseCode = rCode;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return batch.getRemoteAddress();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return responseCode;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return batch.getLocalAddress();
+        }
+
+        @Override
+        public String getProtocol() {
+            return batch.getProtocol();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            Object value = attributes.get(name);
+            return value != null ? value : batch.getAttribute(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            if (value == null)
+                attributes.remove(name);
+            else
+                attributes.put(name, value);
+        }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null)
+                in = i;
+            if (o != null)
+                out = o;
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() {
+            return batch.getPrincipal();
+        }
+    }
+}
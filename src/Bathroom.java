@@ -0,0 +1,24 @@
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A document of the bathrooms collection, decoded by the driver's record codec. The rating aggregates are those stored
+ * when it was read (see Ratings), Catalog.rating() has the current ones.
+ */
+public record Bathroom(@BsonId ObjectId id, String bathroomid, String buildingid, String name,
+                       @Nullable Long ratingSum, @Nullable Integer ratingCount,
+                       @Nullable Map<String, Integer> ratingHistogram) implements Page.Item {
+    /**
+     * Writes the stored fields except the rating aggregates into the current object of out.
+     */
+    public void writeFields(JsonOutput out) throws IOException {
+        out.field("_id", id)
+                .field("bathroomid", bathroomid)
+                .field("buildingid", buildingid)
+                .field("name", name);
+    }
+}
@@ -0,0 +1,18 @@
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+
+/**
+ * A document of the buildings collection, decoded by the driver's record codec.
+ */
+public record Building(@BsonId ObjectId id, String buildingid, String name) implements Page.Item {
+    /**
+     * Writes the stored fields into the current object of out.
+     */
+    public void writeFields(JsonOutput out) throws IOException {
+        out.field("_id", id)
+                .field("buildingid", buildingid)
+                .field("name", name);
+    }
+}
@@ -0,0 +1,261 @@
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory snapshot of the buildings and bathrooms collections, which change rarely but are read by most requests.
+ * A snapshot is never modified, reload() reads both collections into a new one and swaps it in, so readers always see
+ * a consistent catalog. Reloads happen at startup, every CATALOG_REFRESH_S seconds (default 60, 0 disables them) and
+ * on the 'catalog reload' command. Only reloads that find a change invalidate the responses cached from the catalog.
+ * If the first load fails the catalog stays empty, and it is retried every FIRST_LOAD_RETRY_SECONDS until it succeeds.
+ * <p>
+ * Lookups by id read through to the database when the id is not in the snapshot, and reload it in the background if
+ * the document exists, so a new building or bathroom is usable right away.
+ * <p>
+ * The rating aggregates of bathrooms (see Ratings) change with every review, so they are kept beside the snapshot and
+ * replaced by Ratings after each change instead of waiting for a reload. Those replaced while a reload reads the
+ * database are carried over to the snapshot it builds, which may have read them from before the change.
+ */
+public class Catalog {
+    private static final long REFRESH_SECONDS = Env.getLong("CATALOG_REFRESH_S", 60);
+    private static final long FIRST_LOAD_RETRY_SECONDS = 5;
+
+    private static volatile Snapshot snapshot = new Snapshot(
+            List.of(), Map.of(), Map.of(), Map.of(), new ConcurrentHashMap<>(), Instant.EPOCH, 0);
+    private static ScheduledExecutorService refresher;
+    // The ratings updated while a reload reads the database, to apply them to the snapshot it builds.
+    private static final Object RATINGS_LOCK = new Object();
+    private static @Nullable Map<String, Rating> updatedDuringReload = null; // Guarded by RATINGS_LOCK.
+
+    public static synchronized void start() {
+        if (refresher != null)
+            return;
+
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "catalog-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+        // The server still starts if the database is unreachable, with an empty catalog until it is loaded.
+        loadUntilLoaded();
+        if (REFRESH_SECONDS > 0)
+            refresher.scheduleWithFixedDelay(Catalog::reloadQuietly, REFRESH_SECONDS, REFRESH_SECONDS,
+                    TimeUnit.SECONDS);
+    }
+
+    public static synchronized void stop() {
+        if (refresher == null)
+            return;
+        refresher.shutdownNow();
+        refresher = null;
+    }
+
+    public static Snapshot reload() {
+        return reload(DB.db());
+    }
+
+    public static synchronized Snapshot reload(MongoDatabase db) {
+        synchronized (RATINGS_LOCK) {
+            updatedDuringReload = new HashMap<>();
+        }
+        try {
+            return load(db);
+        } finally {
+            synchronized (RATINGS_LOCK) {
+                updatedDuringReload = null;
+            }
+        }
+    }
+
+    private static Snapshot load(MongoDatabase db) {
+        List<Building> buildings = db.getCollection("buildings", Building.class).find()
+                .sort(Sorts.ascending("_id")).into(new ArrayList<>());
+        List<Bathroom> bathrooms = db.getCollection("bathrooms", Bathroom.class).find()
+                .sort(Sorts.ascending("_id")).into(new ArrayList<>());
+
+        Map<String, Building> buildingsById = new HashMap<>();
+        for (Building building : buildings)
+            buildingsById.put(building.buildingid(), building);
+
+        Map<String, Bathroom> bathroomsById = new HashMap<>();
+        Map<String, List<Bathroom>> bathroomsByBuilding = new HashMap<>();
+        ConcurrentHashMap<String, Rating> ratings = new ConcurrentHashMap<>();
+        for (Bathroom bathroom : bathrooms) {
+            String bathroomid = bathroom.bathroomid();
+            bathroomsById.put(bathroomid, bathroom);
+            bathroomsByBuilding.computeIfAbsent(bathroom.buildingid(), k -> new ArrayList<>()).add(bathroom);
+            ratings.put(bathroomid, Rating.of(bathroom));
+        }
+        bathroomsByBuilding.replaceAll((k, v) -> List.copyOf(v));
+
+        Snapshot previous = snapshot;
+        boolean changed = !previous.buildings.equals(buildings)
+                || !sameExceptRatings(previous.bathroomsById, bathroomsById);
+        synchronized (RATINGS_LOCK) {
+            // The database may have been read before these updates were written to it.
+            for (Map.Entry<String, Rating> updated : updatedDuringReload.entrySet())
+                ratings.replace(updated.getKey(), updated.getValue());
+            snapshot = new Snapshot(List.copyOf(buildings), Map.copyOf(buildingsById), Map.copyOf(bathroomsById),
+                    Map.copyOf(bathroomsByBuilding), ratings, Instant.now(), previous.version + (changed ? 1 : 0));
+        }
+        // Most reloads find nothing new, the cached responses built from the catalog are still up to date then.
+        if (changed)
+            ResponseCache.invalidate(ResponseCache.CATALOG);
+        return snapshot;
+    }
+
+    public static Snapshot get() {
+        return snapshot;
+    }
+
+    /**
+     * @return Every building ordered by _id.
+     */
+    public static List<Building> buildings() {
+        return snapshot.buildings;
+    }
+
+    /**
+     * @return The bathrooms of a building ordered by _id, empty if the building has none or does not exist.
+     * Their rating fields may be out of date (see rating()).
+     */
+    public static List<Bathroom> bathroomsOf(String buildingid) {
+        return snapshot.bathroomsByBuilding.getOrDefault(buildingid, List.of());
+    }
+
+    /**
+     * @return The building, or null if it does not exist.
+     */
+    public static @Nullable Building building(String buildingid) {
+        Building building = snapshot.buildingsById.get(buildingid);
+        return building != null ? building : readThrough("buildings", Building.class, "buildingid", buildingid);
+    }
+
+    /**
+     * @return The bathroom, or null if it does not exist. Its rating fields may be out of date (see rating()).
+     */
+    public static @Nullable Bathroom bathroom(String bathroomid) {
+        Bathroom bathroom = snapshot.bathroomsById.get(bathroomid);
+        return bathroom != null ? bathroom : readThrough("bathrooms", Bathroom.class, "bathroomid", bathroomid);
+    }
+
+    /**
+     * @return The current rating aggregates of a bathroom.
+     */
+    public static Rating rating(Bathroom bathroom) {
+        Rating rating = snapshot.ratings.get(bathroom.bathroomid());
+        return rating != null ? rating : Rating.of(bathroom);
+    }
+
+    /**
+     * Replaces the rating aggregates of a bathroom with those in a bathroom document that was just updated.
+     */
+    public static void updateRating(Bathroom bathroom) {
+        String bathroomid = bathroom.bathroomid();
+        Rating rating = Rating.of(bathroom);
+        synchronized (RATINGS_LOCK) {
+            snapshot.ratings.replace(bathroomid, rating);
+            if (updatedDuringReload != null)
+                updatedDuringReload.put(bathroomid, rating);
+        }
+    }
+
+    public static void print(PrintStream output) {
+        Snapshot s = snapshot;
+        output.println("version=" + s.version + " buildings=" + s.buildings.size()
+                + " bathrooms=" + s.bathroomsById.size()
+                + " age=" + Duration.between(s.loadedAt, Instant.now()).toSeconds() + "s"
+                + " refresh=" + (REFRESH_SECONDS > 0 ? REFRESH_SECONDS + "s" : "off"));
+    }
+
+    /**
+     * Compares bathrooms without their rating aggregates, which change with every review and reach the catalog
+     * through updateRating() (and the cached responses through the invalidations of the review handlers) instead.
+     */
+    private static boolean sameExceptRatings(Map<String, Bathroom> a, Map<String, Bathroom> b) {
+        if (a.size() != b.size())
+            return false;
+        for (Bathroom x : a.values()) {
+            Bathroom y = b.get(x.bathroomid());
+            if (y == null || !x.id().equals(y.id()) || !Objects.equals(x.buildingid(), y.buildingid())
+                    || !Objects.equals(x.name(), y.name()))
+                return false;
+        }
+        return true;
+    }
+
+    private static <T> @Nullable T readThrough(String collection, Class<T> type, String idField, String id) {
+        if (id == null)
+            return null;
+        T d = DB.db().getCollection(collection, type).find(new Document(idField, id)).first();
+        if (d != null) {
+            ScheduledExecutorService r = refresher;
+            if (r != null)
+                r.execute(Catalog::reloadQuietly);
+        }
+        return d;
+    }
+
+    /**
+     * @return False if the reload failed, which is printed.
+     */
+    private static boolean reloadQuietly() {
+        try {
+            reload();
+            return true;
+        } catch (RuntimeException e) {
+            System.err.println("Failed to reload the catalog, keeping the previous one: " + e);
+            return false;
+        }
+    }
+
+    private static void loadUntilLoaded() {
+        if (reloadQuietly())
+            return;
+        System.err.println("The catalog is empty until it is loaded, retrying in " + FIRST_LOAD_RETRY_SECONDS + "s.");
+        ScheduledExecutorService r = refresher;
+        if (r != null)
+            r.schedule(Catalog::loadUntilLoaded, FIRST_LOAD_RETRY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public record Snapshot(List<Building> buildings, Map<String, Building> buildingsById,
+                           Map<String, Bathroom> bathroomsById, Map<String, List<Bathroom>> bathroomsByBuilding,
+                           ConcurrentHashMap<String, Rating> ratings, Instant loadedAt, long version) { }
+
+    /**
+     * The rating aggregates of a bathroom, see Ratings.
+     */
+    public record Rating(long sum, int count, Map<String, Integer> histogram) {
+        static Rating of(Bathroom bathroom) {
+            return new Rating(bathroom.ratingSum() == null ? 0 : bathroom.ratingSum(),
+                    bathroom.ratingCount() == null ? 0 : bathroom.ratingCount(),
+                    bathroom.ratingHistogram() == null ? Map.of() : bathroom.ratingHistogram());
+        }
+
+        public @Nullable Double average() {
+            return count <= 0 ? null : (double) sum / count;
+        }
+
+        /**
+         * Writes these aggregates and the average into the current object of out, e.g. after
+         * Bathroom.writeFields().
+         */
+        public void writeFields(JsonOutput out) throws IOException {
+            out.field("ratingSum", sum)
+                    .field("ratingCount", count)
+                    .field("ratingHistogram", histogram)
+                    .field("average", average());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * A document of the chats collection, decoded and encoded by the driver's record codec. See Chats for how they are
+ * created and ordered.
+ * @param createdAt Null for chats written before it was added, until Chats.migrateDates() runs.
+ */
+public record Chat(@BsonId ObjectId id, String userid, String text, @Nullable Date createdAt,
+                   @Nullable String datetime, boolean anon, String chatid) implements Page.Item {
+    /**
+     * A chat as it is sent to clients, with the username of its author ("anon" for anon chats, whose userid is not
+     * sent).
+     */
+    public record WithUsername(Chat chat, String username) implements Page.Item, JsonOutput.Writable {
+        @Override
+        public ObjectId id() {
+            return chat.id;
+        }
+
+        @Override
+        public void writeJson(JsonOutput out) throws IOException {
+            out.beginObject().field("_id", chat.id);
+            if (!chat.anon)
+                out.field("userid", chat.userid);
+            out.field("text", chat.text);
+            if (chat.createdAt != null)
+                out.field("createdAt", chat.createdAt);
+            if (chat.datetime != null)
+                out.field("datetime", chat.datetime);
+            out.field("anon", chat.anon)
+                    .field("chatid", chat.chatid)
+                    .field("username", username)
+                    .endObject();
+        }
+    }
+}
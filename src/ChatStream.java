@@ -0,0 +1,189 @@
+import org.bson.Document;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live feed of chats for /api/chatStream, sent as Server-Sent Events: a "chat" event with the chat (as getChats sends
+ * it) for every created chat and a "delete" event with its chatid for every deleted one.
+ * <p>
+ * Each event is encoded once and put in the queue of every subscriber, which holds at most CHAT_STREAM_QUEUE events
+ * (default 256). A subscriber that falls that far behind is disconnected rather than slowing down or growing without
+ * bound, and resumes where it was when it reconnects: the last CHAT_STREAM_REPLAY events (default 1024) are kept and
+ * replayed after the Last-Event-ID of a reconnecting client. Clients too far behind for that (or that were connected
+ * to an earlier run of the server) get a "reset" event instead, meaning they should reload the chats with getChats.
+ * <p>
+ * Subscribers wait on their queue, so on virtual threads an idle subscriber costs no thread. A comment is sent after
+ * CHAT_STREAM_HEARTBEAT_S seconds without events (default 15) to keep proxies from closing the connection.
+ * At most CHAT_STREAM_MAX_SUBSCRIBERS (default 10000) clients are subscribed at once.
+ */
+public class ChatStream {
+    private static final int QUEUE_SIZE = Env.getInt("CHAT_STREAM_QUEUE", 256);
+    private static final int REPLAY_SIZE = Env.getInt("CHAT_STREAM_REPLAY", 1024);
+    private static final long HEARTBEAT_SECONDS = Env.getLong("CHAT_STREAM_HEARTBEAT_S", 15);
+    private static final int MAX_SUBSCRIBERS = Env.getInt("CHAT_STREAM_MAX_SUBSCRIBERS", 10000);
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] RESET = "event: reset\ndata: {}\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final Event CLOSE = new Event(-1, new byte[0]);
+
+    // Event ids of a run start at its start time in microseconds, so ids of an earlier run are always lower.
+    private static final long FIRST_ID = System.currentTimeMillis() * 1000;
+    private static final ArrayDeque<Event> REPLAY = new ArrayDeque<>(); // Also guards publishing.
+    private static long lastId = FIRST_ID - 1; // Guarded by REPLAY.
+
+    private static final Set<Subscriber> SUBSCRIBERS = ConcurrentHashMap.newKeySet();
+    private static volatile boolean stopped = false;
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder slowDropped = new LongAdder();
+
+    /**
+     * Sends a created chat to every subscriber.
+     */
+    public static void publishCreated(Chat.WithUsername chat) {
+        try {
+            publish("chat", JsonOutput.toString(chat));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // Not thrown when writing to memory.
+        }
+    }
+
+    public static void publishDeleted(String chatid) {
+        publish("delete", new Document("chatid", chatid).toJson());
+    }
+
+    /**
+     * @param lastEventId The Last-Event-ID of a reconnecting client, null for a new one.
+     * @return The new subscriber, or null if there are already CHAT_STREAM_MAX_SUBSCRIBERS of them.
+     * It must be served with serve(), which unsubscribes it when done.
+     */
+    public static @Nullable Subscriber subscribe(@Nullable String lastEventId) {
+        if (stopped || SUBSCRIBERS.size() >= MAX_SUBSCRIBERS)
+            return null;
+
+        Subscriber subscriber = new Subscriber();
+        synchronized (REPLAY) {
+            if (lastEventId != null)
+                subscriber.backlog = replayAfter(lastEventId);
+            SUBSCRIBERS.add(subscriber);
+        }
+        return subscriber;
+    }
+
+    /**
+     * Writes the events of a subscriber to out until the client disconnects, it falls behind or the stream is stopped.
+     * @throws IOException If writing failed, usually because the client disconnected.
+     */
+    public static void serve(Subscriber subscriber, OutputStream out) throws IOException {
+        try {
+            out.write("retry: 3000\n\n".getBytes(StandardCharsets.UTF_8));
+            for (Event event : subscriber.backlog)
+                out.write(event.bytes);
+            subscriber.backlog = List.of();
+            out.flush();
+
+            while (true) {
+                Event event = subscriber.queue.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (event == CLOSE)
+                    return;
+                out.write(event == null ? HEARTBEAT : event.bytes);
+                // Write everything already queued before flushing, a flush is a chunk (and usually a packet).
+                while ((event = subscriber.queue.poll()) != null) {
+                    if (event == CLOSE)
+                        return;
+                    out.write(event.bytes);
+                }
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            SUBSCRIBERS.remove(subscriber);
+        }
+    }
+
+    /**
+     * Disconnects every subscriber and refuses new ones, so that the server does not wait for them when stopping.
+     */
+    public static void stop() {
+        stopped = true;
+        for (Subscriber subscriber : SUBSCRIBERS)
+            subscriber.close();
+    }
+
+    public static Stats stats() {
+        return new Stats(SUBSCRIBERS.size(), published.sum(), slowDropped.sum());
+    }
+
+    private static void publish(String type, String json) {
+        synchronized (REPLAY) {
+            long id = ++lastId;
+            Event event = new Event(id, ("id: " + id + "\nevent: " + type + "\ndata: " + json + "\n\n")
+                    .getBytes(StandardCharsets.UTF_8));
+            REPLAY.addLast(event);
+            if (REPLAY.size() > REPLAY_SIZE)
+                REPLAY.removeFirst();
+            published.increment();
+
+            for (Subscriber subscriber : SUBSCRIBERS) {
+                if (!subscriber.queue.offer(event)) {
+                    slowDropped.increment();
+                    SUBSCRIBERS.remove(subscriber);
+                    subscriber.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The events after lastEventId, or a reset event if some of them are no longer kept. Must hold REPLAY.
+     */
+    private static List<Event> replayAfter(String lastEventId) {
+        long after;
+        try {
+            after = Long.parseLong(lastEventId.trim());
+        } catch (NumberFormatException e) {
+            return List.of(new Event(-1, RESET));
+        }
+
+        long oldestKept = REPLAY.isEmpty() ? lastId + 1 : REPLAY.peekFirst().id;
+        if (after < oldestKept - 1 || after > lastId)
+            return List.of(new Event(-1, RESET));
+
+        List<Event> events = new ArrayList<>();
+        for (Event event : REPLAY)
+            if (event.id > after)
+                events.add(event);
+        return events;
+    }
+
+    private record Event(long id, byte[] bytes) { }
+
+    public static class Subscriber {
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private List<Event> backlog = List.of(); // Replayed events, only used by the thread serving it.
+
+        private void close() {
+            // Make room for CLOSE, the subscriber is getting disconnected so the events it did not get do not matter.
+            queue.clear();
+            queue.offer(CLOSE);
+        }
+    }
+
+    public record Stats(int subscribers, long published, long slowDropped) {
+        @Override
+        public String toString() {
+            return "subscribers=" + subscribers + "/" + MAX_SUBSCRIBERS + " published=" + published
+                    + " droppedSlow=" + slowDropped + " queue=" + QUEUE_SIZE + " replay=" + REPLAY_SIZE;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Inserts chats in batches (group commit): createChat queues its chat and waits, and a single background thread
+ * inserts everything queued with one insertMany. A batch is written once it has CHAT_BATCH_SIZE chats (default 256) or
+ * CHAT_BATCH_WAIT_MS milliseconds (default 5) after its first chat was queued, so a lone chat waits at most that long
+ * while a burst of chats costs one round trip per batch instead of one per chat.
+ * <p>
+ * insert() returns once the batch with the chat is acknowledged with CHAT_WRITE_CONCERN (a WriteConcern name like
+ * "w1" or "majority", default the database's). At most CHAT_WRITE_QUEUE chats (default 4096) wait at a time, insert()
+ * throws Busy after that.
+ */
+public class ChatWriter {
+    private static final int BATCH_SIZE = Env.getInt("CHAT_BATCH_SIZE", 256);
+    private static final long BATCH_WAIT_NANOS = Env.getLong("CHAT_BATCH_WAIT_MS", 5) * 1_000_000;
+    private static final @Nullable WriteConcern WRITE_CONCERN = writeConcern(Env.get("CHAT_WRITE_CONCERN"));
+    private static final InsertManyOptions INSERT_OPTIONS = new InsertManyOptions().ordered(false);
+
+    private static final BlockingQueue<Pending> QUEUE = new ArrayBlockingQueue<>(Env.getInt("CHAT_WRITE_QUEUE", 4096));
+    private static final Pending STOP = new Pending(null, null);
+    private static Thread writer;
+
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder chats = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+    private static final Metrics.Histogram batchSizes = new Metrics.Histogram();
+    private static final Metrics.Histogram flushMicros = new Metrics.Histogram();
+
+    public static synchronized void start() {
+        if (writer != null)
+            return;
+        writer = new Thread(ChatWriter::writeLoop, "chat-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes the chats already queued and stops the background thread. Call it before DB.stop().
+     */
+    public static synchronized void stop() {
+        if (writer == null)
+            return;
+        try {
+            QUEUE.put(STOP);
+            writer.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /**
+     * Inserts chat into the chats collection with the next batch and waits until the batch is acknowledged.
+     * @throws Busy If too many chats are waiting to be inserted already.
+     * @throws MongoException If the insert failed.
+     */
+    public static void insert(Chat chat) throws Busy {
+        Pending pending = new Pending(chat, new CompletableFuture<>());
+        if (!QUEUE.offer(pending)) {
+            rejected.increment();
+            throw new Busy();
+        }
+
+        try {
+            pending.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("Interrupted while waiting for the chat to be inserted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MongoException mongoException)
+                throw mongoException;
+            throw new MongoException("Failed to insert the chat.", e.getCause());
+        }
+    }
+
+    public static Stats stats() {
+        return new Stats(QUEUE.size(), batches.sum(), chats.sum(), rejected.sum(),
+                batchSizes.snapshot(), flushMicros.snapshot());
+    }
+
+    private static void writeLoop() {
+        List<Pending> batch = new ArrayList<>(BATCH_SIZE);
+        while (true) {
+            try {
+                Pending first = QUEUE.take();
+                boolean stopping = first == STOP;
+                if (!stopping)
+                    batch.add(first);
+
+                long deadline = System.nanoTime() + BATCH_WAIT_NANOS;
+                while (!stopping && batch.size() < BATCH_SIZE) {
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? QUEUE.poll(remaining, TimeUnit.NANOSECONDS) : QUEUE.poll();
+                    if (next == null)
+                        break;
+                    if (next == STOP)
+                        stopping = true;
+                    else
+                        batch.add(next);
+                }
+
+                if (!batch.isEmpty())
+                    flush(batch);
+                batch.clear();
+                if (stopping)
+                    return;
+            } catch (InterruptedException e) {
+                for (Pending pending : batch)
+                    pending.done.completeExceptionally(e);
+                return;
+            }
+        }
+    }
+
+    private static void flush(List<Pending> batch) {
+        List<Chat> docs = new ArrayList<>(batch.size());
+        for (Pending pending : batch)
+            docs.add(pending.chat);
+
+        long start = System.nanoTime();
+        MongoCollection<Chat> collection = DB.db().getCollection("chats", Chat.class);
+        if (WRITE_CONCERN != null)
+            collection = collection.withWriteConcern(WRITE_CONCERN);
+        try {
+            collection.insertMany(docs, INSERT_OPTIONS);
+            for (Pending pending : batch)
+                pending.done.complete(null);
+        } catch (MongoBulkWriteException e) {
+            // Unordered, so only the chats with an error failed.
+            Throwable[] errors = new Throwable[batch.size()];
+            for (BulkWriteError error : e.getWriteErrors())
+                errors[error.getIndex()] = new MongoException(error.getCode(), error.getMessage());
+            for (int i = 0; i < batch.size(); i++) {
+                if (errors[i] != null)
+                    batch.get(i).done.completeExceptionally(errors[i]);
+                else if (e.getWriteConcernError() != null)
+                    batch.get(i).done.completeExceptionally(e);
+                else
+                    batch.get(i).done.complete(null);
+            }
+        } catch (RuntimeException e) {
+            for (Pending pending : batch)
+                pending.done.completeExceptionally(e);
+        } finally {
+            flushMicros.record((System.nanoTime() - start) / 1_000);
+            batchSizes.record(batch.size());
+            batches.increment();
+            chats.add(batch.size());
+        }
+    }
+
+    private static @Nullable WriteConcern writeConcern(@Nullable String name) {
+        if (name == null || name.isBlank())
+            return null;
+        WriteConcern writeConcern = WriteConcern.valueOf(name.trim());
+        if (writeConcern == null)
+            throw new IllegalArgumentException("CHAT_WRITE_CONCERN is not a write concern: " + name);
+        return writeConcern;
+    }
+
+    private record Pending(Chat chat, CompletableFuture<Void> done) { }
+
+    public static class Busy extends Exception { }
+
+    public record Stats(int queued, long batches, long chats, long rejected, long[] batchSizes, long[] flushMicros) {
+        public void print(PrintStream output) {
+            output.println("queued=" + queued + " batches=" + batches + " chats=" + chats + " rejected=" + rejected
+                    + String.format(" avgBatch=%.1f", batches == 0 ? 0.0 : (double) chats / batches)
+                    + " writeConcern=" + (WRITE_CONCERN == null ? "default" : WRITE_CONCERN.asDocument().toJson()));
+            output.printf("batch size p50=%d p99=%d max=%d%n", Metrics.Histogram.quantile(batchSizes, 0.5),
+                    Metrics.Histogram.quantile(batchSizes, 0.99), Metrics.Histogram.quantile(batchSizes, 1.0));
+            output.printf("flush ms   p50=%.2f p99=%.2f max=%.2f%n",
+                    Metrics.Histogram.quantile(flushMicros, 0.5) / 1_000.0,
+                    Metrics.Histogram.quantile(flushMicros, 0.99) / 1_000.0,
+                    Metrics.Histogram.quantile(flushMicros, 1.0) / 1_000.0);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How chats are stored. Each chat has a createdAt date and a time ordered chatid (a version 7 UUID). Its _id is created
+ * right after createdAt, and as ObjectIds made by one process increase, ordering chats by _id orders them by time.
+ * getChats lists them newest first that way, and since/before bounds on createdAt are narrowed down to a range of _id
+ * so they are served by the _id index too.
+ * <p>
+ * Chats used to only have a datetime string in the server's time zone, migrateDates() adds createdAt to those.
+ * datetime is still stored for older clients but only meant for display.
+ */
+public class Chats {
+    public static final DateTimeFormatter DATETIME_FORMAT = DateTimeFormatter.ofPattern("d MMM uuuu HH:mm:ss");
+
+    /**
+     * @return A new chat, with its _id, createdAt and chatid.
+     */
+    public static Chat create(String userid, String text, boolean anon) {
+        Instant now = Instant.now();
+        return new Chat(new ObjectId(), userid, text, Date.from(now),
+                LocalDateTime.ofInstant(now, ZoneId.systemDefault()).format(DATETIME_FORMAT), anon,
+                uuidV7(now.toEpochMilli()).toString());
+    }
+
+    /**
+     * @param since Only chats created after it, if not null.
+     * @param before Only chats created before it, if not null.
+     * @return The filter for chats created between since and before.
+     */
+    public static Bson between(@Nullable Instant since, @Nullable Instant before) {
+        List<Bson> filters = new ArrayList<>(4);
+        // An _id is created after its createdAt, in the same second or (rarely) the next one.
+        if (since != null) {
+            filters.add(Filters.gte("_id", objectIdAt(since.getEpochSecond())));
+            filters.add(Filters.gt("createdAt", Date.from(since)));
+        }
+        if (before != null) {
+            filters.add(Filters.lt("_id", objectIdAt(before.getEpochSecond() + 2)));
+            filters.add(Filters.lt("createdAt", Date.from(before)));
+        }
+        return filters.isEmpty() ? new Document() : Filters.and(filters);
+    }
+
+    /**
+     * @return True if chat is matched by the filter from between(since, before).
+     */
+    public static boolean isBetween(Chat chat, @Nullable Instant since, @Nullable Instant before) {
+        if (since == null && before == null)
+            return true;
+        Date createdAt = chat.createdAt();
+        return createdAt != null
+                && (since == null || createdAt.toInstant().isAfter(since))
+                && (before == null || createdAt.toInstant().isBefore(before));
+    }
+
+    /**
+     * @param value The since or before of a request, an ISO-8601 instant or milliseconds since the epoch.
+     * @return The instant, or null if value is null.
+     * @throws IllegalArgumentException If value is not an instant.
+     */
+    public static @Nullable Instant parseInstant(@Nullable Object value) {
+        if (value == null)
+            return null;
+        if (value instanceof Number n)
+            return Instant.ofEpochMilli(n.longValue());
+        if (value instanceof String s) {
+            try {
+                return Instant.parse(s);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        throw new IllegalArgumentException("Not an instant: " + value);
+    }
+
+    /**
+     * Adds createdAt to the chats that only have a datetime string, reading it in the server's time zone as
+     * createChat wrote it. Chats whose datetime cannot be read get the time of their _id instead.
+     * @return The number of chats updated.
+     */
+    public static int migrateDates(MongoDatabase db) {
+        MongoCollection<Document> chats = db.getCollection("chats");
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        int updated = 0;
+        for (Document chat : chats.find(Filters.exists("createdAt", false))) {
+            Date createdAt;
+            try {
+                createdAt = Date.from(LocalDateTime.parse(chat.getString("datetime"), DATETIME_FORMAT)
+                        .atZone(ZoneId.systemDefault()).toInstant());
+            } catch (DateTimeParseException | NullPointerException e) {
+                createdAt = chat.getObjectId("_id").getDate();
+            }
+            updates.add(new UpdateOneModel<>(Filters.eq("_id", chat.get("_id")), Updates.set("createdAt", createdAt)));
+            if (updates.size() == 1000) {
+                updated += chats.bulkWrite(updates).getModifiedCount();
+                updates.clear();
+            }
+        }
+        if (!updates.isEmpty())
+            updated += chats.bulkWrite(updates).getModifiedCount();
+        return updated;
+    }
+
+    /**
+     * @return The chats as they are sent to clients: with the username "anon" for anon chats, and the username of
+     * their author for every other chat.
+     */
+    public static List<Chat.WithUsername> withUsernames(MongoDatabase db, List<Chat> chats) {
+        // The userids of anon chats are not sent, so they are not looked up either.
+        Map<String, String> usernames = DB.getUsernames(db, chats, chat -> chat.anon() ? null : chat.userid());
+        List<Chat.WithUsername> withUsernames = new ArrayList<>(chats.size());
+        for (Chat chat : chats)
+            withUsernames.add(new Chat.WithUsername(chat,
+                    chat.anon() ? "anon" : usernames.getOrDefault(chat.userid(), DB.MISSING_USERNAME)));
+        return withUsernames;
+    }
+
+    private static ObjectId objectIdAt(long epochSecond) {
+        // The smallest ObjectId of that second.
+        byte[] bytes = new byte[12];
+        for (int i = 0; i < 4; i++)
+            bytes[i] = (byte) (epochSecond >>> (24 - 8 * i));
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * @return A version 7 UUID (RFC 9562): 48 bits of milliseconds, then random bits, so they sort by time.
+     */
+    private static UUID uuidV7(long epochMillis) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long msb = (epochMillis << 16) | 0x7000 | (random.nextLong() & 0x0fff);
+        long lsb = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(msb, lsb);
+    }
+}
@@ -19,6 +19,43 @@ public class Commands {
                         \t\tsubcmd == delete -> Deletes all data.
                         \t\tsubcmd == keys -> Generates RSA keys in public.key and private.key files.
                         \t\tsubcmd == data -> Generates testing data and stores it into the database.""");
+        addCommand("stats", Commands::statsHandler,
+                """
+                        stats [prometheus|compression|chatstream]
+                        \tDisplays request counts and latencies per endpoint, and JVM and server gauges.
+                        \t\tprometheus -> Displays them as served by /api/metrics instead.
+                        \t\tcompression -> Displays the compression ratio and CPU time of compressed responses.
+                        \t\tchatstream -> Displays the subscribers and events of the live chat stream.""");
+        addCommand("auth", Commands::authHandler,
+                """
+                        auth <subcmd>
+                        \tAuthentication related functions.
+                        \t\tsubcmd == cache -> Displays the hit rate and size of the verified access token cache.
+                        \t\tsubcmd == hash -> Displays the queue depth and timings of the password hashing pool.""");
+        addCommand("catalog", Commands::catalogHandler,
+                """
+                        catalog <subcmd>
+                        \tIn memory catalog of buildings and bathrooms.
+                        \t\tsubcmd == info -> Displays the number of buildings and bathrooms and the age of the catalog.
+                        \t\tsubcmd == reload -> Reloads the catalog from the database now.""");
+        addCommand("cache", Commands::cacheHandler,
+                """
+                        cache <subcmd>
+                        \tCache of encoded list responses.
+                        \t\tsubcmd == info -> Displays the hit rate and size of the response cache.
+                        \t\tsubcmd == clear -> Empties the response cache.
+                        \t\tsubcmd == chats -> Displays how many of the newest chats are in memory and their hit rate.
+                        \t\tsubcmd == reloadchats -> Reloads the newest chats from the database.""");
+        addCommand("db", Commands::dbHandler,
+                """
+                        db <subcmd>
+                        \tDatabase related functions.
+                        \t\tsubcmd == pool -> Displays connection pool usage (open, checked out and waiting).
+                        \t\tsubcmd == chats -> Displays the batch sizes and flush latency of chat inserts.
+                        \t\tsubcmd == chatdates -> Adds createdAt dates to chats stored with only a datetime string.
+                        \t\tsubcmd == indexes -> Lists missing, undeclared and unused indexes and checks that no query
+                        \t\t\tused by the request handlers needs a collection scan.
+                        \t\tsubcmd == ratings -> Rebuilds the rating aggregates of every bathroom from its reviews.""");
     }};
 
     /**
@@ -89,5 +126,88 @@ public class Commands {
         }
     }
 
+    private static void statsHandler(Scanner args, PrintStream output) {
+        String subcmd = args.hasNext() ? args.next() : "";
+        switch (subcmd) {
+            case "prometheus" -> output.print(Metrics.prometheus());
+            case "compression" -> output.println(Compression.stats());
+            case "chatstream" -> output.println(ChatStream.stats());
+            default -> Metrics.print(output);
+        }
+    }
+
+    private static void authHandler(Scanner args, PrintStream output) {
+        if (!args.hasNext()) {
+            helpHandler(new Scanner("auth"), output);
+            return;
+        }
+
+        String subcmd = args.next();
+        switch (subcmd) {
+            case "cache" -> output.println(Auth.tokenCacheStats());
+            case "hash" -> output.println(PasswordHasher.stats());
+            default -> output.println("Invalid arguments. Try 'help auth'.");
+        }
+    }
+
+    private static void dbHandler(Scanner args, PrintStream output) {
+        if (!args.hasNext()) {
+            helpHandler(new Scanner("db"), output);
+            return;
+        }
+
+        String subcmd = args.next();
+        switch (subcmd) {
+            case "pool" -> output.println(DB.poolStats());
+            case "chats" -> ChatWriter.stats().print(output);
+            case "chatdates" -> {
+                output.println("Added createdAt to " + Chats.migrateDates(DB.db()) + " chats.");
+                RecentChats.reload(DB.db());
+            }
+            case "indexes" -> DBIndexes.report(DB.db(), output);
+            case "ratings" -> output.println("Rebuilt ratings, " + Ratings.rebuild(DB.db()) + " bathrooms have reviews.");
+            default -> output.println("Invalid arguments. Try 'help db'.");
+        }
+    }
+
+    private static void catalogHandler(Scanner args, PrintStream output) {
+        if (!args.hasNext()) {
+            helpHandler(new Scanner("catalog"), output);
+            return;
+        }
+
+        String subcmd = args.next();
+        switch (subcmd) {
+            case "info" -> Catalog.print(output);
+            case "reload" -> {
+                Catalog.reload();
+                Catalog.print(output);
+            }
+            default -> output.println("Invalid arguments. Try 'help catalog'.");
+        }
+    }
+
+    private static void cacheHandler(Scanner args, PrintStream output) {
+        if (!args.hasNext()) {
+            helpHandler(new Scanner("cache"), output);
+            return;
+        }
+
+        String subcmd = args.next();
+        switch (subcmd) {
+            case "info" -> output.println(ResponseCache.stats());
+            case "clear" -> {
+                ResponseCache.clear();
+                output.println("Cleared the response cache.");
+            }
+            case "chats" -> output.println(RecentChats.stats());
+            case "reloadchats" -> {
+                RecentChats.reload(DB.db());
+                output.println(RecentChats.stats());
+            }
+            default -> output.println("Invalid arguments. Try 'help cache'.");
+        }
+    }
+
     private interface CommandHandler { void handle(Scanner args, PrintStream output); }
 }
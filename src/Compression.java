@@ -0,0 +1,253 @@
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses responses with gzip or deflate when the client's Accept-Encoding allows it, see
+ * ReqHandlers.closeOutRequest.
+ * <p>
+ * Responses smaller than COMPRESSION_MIN_BYTES (default 1024) are sent as they are, since compressing them saves next
+ * to nothing. COMPRESSION_LEVEL (1 to 9, default 6) trades CPU for size. Set COMPRESSION=off to disable it.
+ * Deflaters hold native memory, so they are pooled instead of created for every response.
+ */
+public class Compression {
+    public static final int MIN_BYTES = Env.getInt("COMPRESSION_MIN_BYTES", 1024);
+
+    private static final boolean ENABLED = !"off".equalsIgnoreCase(Env.get("COMPRESSION"));
+    private static final int LEVEL = Math.max(1, Math.min(9, Env.getInt("COMPRESSION_LEVEL", 6)));
+    private static final int MAX_POOLED = 64;
+    private static final ConcurrentLinkedQueue<Deflater> RAW_POOL = new ConcurrentLinkedQueue<>(); // For gzip.
+    private static final ConcurrentLinkedQueue<Deflater> ZLIB_POOL = new ConcurrentLinkedQueue<>(); // For deflate.
+
+    private static final LongAdder responses = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder nanos = new LongAdder();
+
+    public enum Encoding {
+        IDENTITY(null), GZIP("gzip"), DEFLATE("deflate");
+
+        public final @Nullable String header;
+
+        Encoding(@Nullable String header) {
+            this.header = header;
+        }
+    }
+
+    /**
+     * Picks the encoding of a response from the request's Accept-Encoding, preferring gzip.
+     * @param length The length of the uncompressed response.
+     */
+    public static Encoding negotiate(HttpExchange e, long length) {
+        if (!ENABLED || length < MIN_BYTES)
+            return Encoding.IDENTITY;
+
+        String acceptEncoding = e.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding == null)
+            return Encoding.IDENTITY;
+
+        // A coding listed by name keeps its q value, the wildcard only applies to those not listed (RFC 9110 12.5.3).
+        double gzip = -1;
+        double deflate = -1;
+        double any = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip", "x-gzip" -> gzip = q;
+                case "deflate" -> deflate = q;
+                case "*" -> any = q;
+            }
+        }
+        if (gzip < 0)
+            gzip = any;
+        if (deflate < 0)
+            deflate = any;
+
+        if (gzip > 0 && gzip >= deflate)
+            return Encoding.GZIP;
+        return deflate > 0 ? Encoding.DEFLATE : Encoding.IDENTITY;
+    }
+
+    /**
+     * Sets the Content-Encoding (and Vary) headers of a response sent with encoding.
+     * Must be called before the response headers are sent.
+     */
+    public static void addHeaders(HttpExchange e, Encoding encoding) {
+        if (ENABLED)
+            e.getResponseHeaders().set("Vary", "Accept-Encoding");
+        if (encoding.header != null)
+            e.getResponseHeaders().set("Content-Encoding", encoding.header);
+    }
+
+    public static byte[] compress(byte[] body, Encoding encoding) {
+        if (encoding == Encoding.IDENTITY)
+            return body;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (OutputStream out = compress(compressed, encoding)) {
+            out.write(body);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // ByteArrayOutputStream does not throw.
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * @return A stream compressing everything written to it into out. It must be closed to finish the compressed
+     * data and return its deflater to the pool, which also closes out.
+     */
+    private static OutputStream compress(OutputStream out, Encoding encoding) {
+        return encoding == Encoding.IDENTITY ? out : new CompressingOutputStream(out, encoding == Encoding.GZIP);
+    }
+
+    public static Stats stats() {
+        return new Stats(responses.sum(), bytesIn.sum(), bytesOut.sum(), nanos.sum(), LEVEL, ENABLED);
+    }
+
+    private static Deflater acquire(boolean gzip) {
+        Deflater deflater = (gzip ? RAW_POOL : ZLIB_POOL).poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, gzip); // gzip has its own header and trailer around raw deflate data.
+        }
+        return deflater;
+    }
+
+    private static void release(Deflater deflater, boolean gzip) {
+        responses.increment();
+        bytesIn.add(deflater.getBytesRead());
+        bytesOut.add(deflater.getBytesWritten());
+
+        ConcurrentLinkedQueue<Deflater> pool = gzip ? RAW_POOL : ZLIB_POOL;
+        if (pool.size() < MAX_POOLED) {
+            deflater.reset();
+            pool.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Like GZIPOutputStream and DeflaterOutputStream, but with a pooled deflater and timing the compression itself.
+     */
+    private static class CompressingOutputStream extends FilterOutputStream {
+        private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+        private final boolean gzip;
+        private final CRC32 crc;
+        private final byte[] buf = new byte[8 * 1024];
+        private @Nullable Deflater deflater;
+        private boolean headerWritten = false;
+
+        CompressingOutputStream(OutputStream out, boolean gzip) {
+            super(out);
+            this.gzip = gzip;
+            this.crc = gzip ? new CRC32() : null;
+            this.deflater = acquire(gzip);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (deflater == null)
+                throw new IOException("Stream closed");
+            if (len == 0)
+                return;
+            writeHeader();
+            if (gzip)
+                crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput())
+                deflate(Deflater.NO_FLUSH);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (deflater != null && headerWritten) {
+                int n;
+                do {
+                    n = deflate(Deflater.SYNC_FLUSH);
+                } while (n == buf.length);
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater == null)
+                return;
+            Deflater d = deflater;
+            try {
+                writeHeader();
+                d.finish();
+                while (!d.finished())
+                    deflate(Deflater.NO_FLUSH);
+                if (gzip)
+                    writeGzipTrailer(d);
+                out.close();
+            } finally {
+                deflater = null;
+                release(d, gzip);
+            }
+        }
+
+        private void writeHeader() throws IOException {
+            if (gzip && !headerWritten)
+                out.write(GZIP_HEADER);
+            headerWritten = true;
+        }
+
+        private int deflate(int flush) throws IOException {
+            long start = System.nanoTime();
+            int n = deflater.deflate(buf, 0, buf.length, flush);
+            nanos.add(System.nanoTime() - start);
+            if (n > 0)
+                out.write(buf, 0, n);
+            return n;
+        }
+
+        private void writeGzipTrailer(Deflater d) throws IOException {
+            long value = crc.getValue();
+            long size = d.getBytesRead();
+            byte[] trailer = new byte[8];
+            for (int i = 0; i < 4; i++) {
+                trailer[i] = (byte) (value >>> (8 * i));
+                trailer[4 + i] = (byte) (size >>> (8 * i));
+            }
+            out.write(trailer);
+        }
+    }
+
+    public record Stats(long responses, long bytesIn, long bytesOut, long nanos, int level, boolean enabled) {
+        @Override
+        public String toString() {
+            if (!enabled)
+                return "disabled (COMPRESSION=off)";
+            return "responses=" + responses + " in=" + bytesIn / 1024 + "KiB out=" + bytesOut / 1024 + "KiB"
+                    + String.format(" ratio=%.2f", bytesOut == 0 ? 0.0 : (double) bytesIn / bytesOut)
+                    + String.format(" cpu=%.1fms", nanos / 1_000_000.0) + " level=" + level;
+        }
+    }
+}
@@ -1,19 +1,119 @@
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.event.*;
 import org.bson.Document;
 
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
+/**
+ * Owns the single MongoClient (and therefore the single connection pool) used by the whole process.
+ * The client is created by start() when the server starts and closed by stop() when it shuts down.
+ * Do not close the client returned by client(), it is shared by every request.
+ */
 public class DB {
+    /**
+     * Username given to documents whose userid does not belong to any user (e.g. the user was deleted).
+     */
+    public static final String MISSING_USERNAME = "[deleted]";
+
+    private static final PoolListener POOL_LISTENER = new PoolListener();
+    private static volatile MongoClient client;
+
+    public static void start() {
+        start(Env.DB_URL);
+    }
+
+    /**
+     * Starts the client with the database at url instead of DB_URL, e.g. for load tests.
+     */
+    public static synchronized void start(String url) {
+        if (client != null)
+            return;
+
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(url))
+                .applyToConnectionPoolSettings(b -> b
+                        .maxSize(Env.DB_MAX_POOL_SIZE)
+                        .minSize(Env.DB_MIN_POOL_SIZE)
+                        .maxWaitTime(Env.DB_MAX_WAIT_MS, TimeUnit.MILLISECONDS)
+                        .maxConnectionIdleTime(Env.DB_MAX_IDLE_MS, TimeUnit.MILLISECONDS)
+                        .maxConnectionLifeTime(Env.DB_MAX_LIFE_MS, TimeUnit.MILLISECONDS)
+                        .addConnectionPoolListener(POOL_LISTENER))
+                .build();
+        client = MongoClients.create(settings);
+    }
+
+    public static synchronized void stop() {
+        if (client == null)
+            return;
+
+        client.close();
+        client = null;
+    }
+
+    /**
+     * @return The shared client, starting it first if start() has not been called yet (e.g. a command was run
+     * before the server was started). Must not be closed by the caller.
+     */
     public static MongoClient client() {
-        return MongoClients.create(Env.DB_URL);
+        MongoClient c = client;
+        if (c == null) {
+            start();
+            c = client;
+        }
+        return c;
+    }
+
+    public static MongoDatabase db() {
+        return db(client());
     }
 
     public static MongoDatabase db(MongoClient client) {
         return client.getDatabase("tt-database");
     }
 
+    /**
+     * Looks up the usernames for the userids of all the provided documents in a single query.
+     * Documents without a userid are ignored.
+     * @param userid Gets the userid of a document.
+     * @return Map from userid to username. Userids that do not belong to a user are not in the map,
+     * use MISSING_USERNAME for them.
+     */
+    public static <T> Map<String, String> getUsernames(MongoDatabase db, Collection<T> docs,
+                                                       Function<? super T, String> userid) {
+        Set<String> userids = new HashSet<>();
+        for (T d : docs) {
+            String id = userid.apply(d);
+            if (id != null)
+                userids.add(id);
+        }
+        if (userids.isEmpty())
+            return Map.of();
+
+        Map<String, String> usernames = new HashMap<>(userids.size() * 2);
+        for (Document user : db.getCollection("users")
+                .find(Filters.in("userid", userids))
+                .projection(Projections.include("userid", "username")))
+            usernames.put(user.getString("userid"), user.getString("username"));
+        return usernames;
+    }
+
+    public static PoolStats poolStats() {
+        return new PoolStats(
+                POOL_LISTENER.size.get(),
+                POOL_LISTENER.checkedOut.get(),
+                POOL_LISTENER.waitQueue.get(),
+                Env.DB_MAX_POOL_SIZE);
+    }
+
     public static String getNewUserId(MongoDatabase db) throws Auth.InternalError {
         String userid = null;
         boolean foundId = false;
@@ -31,4 +131,54 @@ public class DB {
 
         return userid;
     }
+
+    /**
+     * @param size Number of open connections in the pool.
+     * @param checkedOut Number of connections currently in use by a request.
+     * @param waitQueue Number of requests currently waiting for a connection to become available.
+     * @param maxSize The configured maximum pool size.
+     */
+    public record PoolStats(int size, int checkedOut, int waitQueue, int maxSize) {
+        @Override
+        public String toString() {
+            return "size=" + size + "/" + maxSize + " checkedOut=" + checkedOut + " waitQueue=" + waitQueue;
+        }
+    }
+
+    private static class PoolListener implements ConnectionPoolListener {
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger checkedOut = new AtomicInteger();
+        private final AtomicInteger waitQueue = new AtomicInteger();
+
+        @Override
+        public void connectionCreated(ConnectionCreatedEvent event) {
+            size.incrementAndGet();
+        }
+
+        @Override
+        public void connectionClosed(ConnectionClosedEvent event) {
+            size.decrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+            waitQueue.incrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+            waitQueue.decrementAndGet();
+            checkedOut.incrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+            waitQueue.decrementAndGet();
+        }
+
+        @Override
+        public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+            checkedOut.decrementAndGet();
+        }
+    }
 }
@@ -0,0 +1,192 @@
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.util.*;
+
+import static com.mongodb.client.model.Indexes.ascending;
+import static com.mongodb.client.model.Indexes.compoundIndex;
+import static com.mongodb.client.model.Indexes.descending;
+
+/**
+ * Declares the indexes needed by the queries in ReqHandlers, Auth, Catalog and RecentChats, and the shape of those
+ * queries so that it can be checked that each of them is actually served by an index.
+ * When adding a query to a handler, add its shape to QUERIES and, if no declared index serves it, an index to INDEXES.
+ */
+public class DBIndexes {
+    private static final long RETRY_SECONDS = 5;
+
+    private static final List<Index> INDEXES = List.of(
+            new Index("users", ascending("email"), true),
+            new Index("users", ascending("username"), true),
+            new Index("users", ascending("userid"), true),
+            new Index("buildings", ascending("buildingid"), true),
+            new Index("bathrooms", ascending("bathroomid"), true),
+            new Index("reviews", ascending("bathroomid", "_id"), false),
+            new Index("reviews", ascending("userid", "bathroomid"), true),
+            new Index("reviews", compoundIndex(ascending("userid"), descending("_id")), false),
+            new Index("chats", ascending("chatid"), true));
+
+    private static final List<Query> QUERIES = List.of(
+            new Query("users by email", "users", new Document("email", ""), null),
+            new Query("users by username", "users", new Document("username", ""), null),
+            new Query("users by userids", "users", new Document("userid", new Document("$in", List.of(""))), null),
+            new Query("catalog buildings", "buildings", new Document(), Sorts.ascending("_id")),
+            new Query("catalog bathrooms", "bathrooms", new Document(), Sorts.ascending("_id")),
+            new Query("building by id", "buildings", new Document("buildingid", ""), null),
+            new Query("bathroom by id", "bathrooms", new Document("bathroomid", ""), null),
+            new Query("reviews of bathroom page", "reviews", new Document("bathroomid", ""), Sorts.ascending("_id")),
+            new Query("review of user for bathroom", "reviews",
+                    new Document("userid", "").append("bathroomid", ""), null),
+            new Query("recent reviews of user", "reviews", new Document("userid", ""), Sorts.descending("_id")),
+            new Query("chats page and recent chats", "chats", new Document(), Sorts.descending("_id")),
+            new Query("chats since", "chats", new Document("_id", new Document("$gte", new ObjectId()))
+                    .append("createdAt", new Document("$gt", new Date())), Sorts.descending("_id")),
+            new Query("chat by id", "chats", new Document("chatid", ""), null));
+
+    /**
+     * Runs ensure() on a background thread, so that the server does not wait for it at startup. While the database
+     * cannot be reached it is retried every RETRY_SECONDS.
+     */
+    public static void start() {
+        Thread t = new Thread(() -> {
+            List<Index> pending = INDEXES;
+            while (true) {
+                pending = ensure(DB.db(), pending);
+                if (pending.isEmpty())
+                    return;
+                System.err.println("Could not reach the database to create indexes, retrying in " + RETRY_SECONDS + "s.");
+                try {
+                    Thread.sleep(RETRY_SECONDS * 1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "db-indexes");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Creates any declared index that does not exist yet. Indexes that already exist are left untouched, so this is
+     * safe to call on every startup.
+     * Failures (e.g. existing duplicate data preventing a unique index) are printed and do not stop the others.
+     */
+    public static void ensure(MongoDatabase db) {
+        ensure(db, INDEXES);
+    }
+
+    /**
+     * @return The indexes that were not created because the database could not be reached, which is only tried once
+     * instead of waiting for the server selection timeout for every index.
+     */
+    private static List<Index> ensure(MongoDatabase db, List<Index> indexes) {
+        for (int i = 0; i < indexes.size(); i++) {
+            Index index = indexes.get(i);
+            try {
+                db.getCollection(index.collection).createIndex(index.keys, new IndexOptions().unique(index.unique));
+            } catch (MongoTimeoutException | MongoSocketException e) {
+                System.err.println("Failed to create index " + index + ": " + e.getMessage());
+                return indexes.subList(i, indexes.size());
+            } catch (MongoException e) {
+                System.err.println("Failed to create index " + index + ": " + e.getMessage());
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * Prints the declared indexes that are missing, the existing indexes that are not declared or have not been used
+     * since the server started, and whether each query shape is planned with a collection scan.
+     */
+    public static void report(MongoDatabase db, PrintStream output) {
+        Set<String> collections = new TreeSet<>();
+        for (Index index : INDEXES)
+            collections.add(index.collection);
+
+        output.println("Indexes:");
+        for (String collection : collections) {
+            Map<Document, String> existing = new HashMap<>();
+            for (Document index : db.getCollection(collection).listIndexes())
+                existing.put(index.get("key", Document.class), index.getString("name"));
+
+            Set<Document> declared = new HashSet<>();
+            for (Index index : INDEXES) {
+                if (!index.collection.equals(collection))
+                    continue;
+                Document keys = index.keysDoc();
+                declared.add(keys);
+                if (!existing.containsKey(keys))
+                    output.println("\tMISSING " + index);
+            }
+
+            Map<String, Long> ops = new HashMap<>();
+            try {
+                for (Document stats : db.getCollection(collection).aggregate(List.of(new Document("$indexStats", new Document()))))
+                    ops.put(stats.getString("name"), ((Number) stats.get("accesses", Document.class).get("ops")).longValue());
+            } catch (MongoException e) {
+                output.println("\tCould not get index usage of " + collection + ": " + e.getMessage());
+            }
+
+            for (Map.Entry<Document, String> index : existing.entrySet()) {
+                String name = index.getValue();
+                if (name.equals("_id_"))
+                    continue;
+                if (!declared.contains(index.getKey()))
+                    output.println("\tUNDECLARED " + collection + " " + index.getKey().toJson());
+                else if (ops.getOrDefault(name, -1L) == 0)
+                    output.println("\tUNUSED " + collection + " " + index.getKey().toJson());
+            }
+        }
+
+        output.println("Query plans:");
+        for (Query query : QUERIES) {
+            try {
+                FindIterable<Document> find = db.getCollection(query.collection).find(query.filter).limit(1);
+                if (query.sort != null)
+                    find.sort(query.sort);
+                Document plan = find.explain().get("queryPlanner", Document.class).get("winningPlan", Document.class);
+                List<String> stages = new ArrayList<>();
+                collectStages(plan, stages);
+                output.println("\t" + (stages.contains("COLLSCAN") ? "COLLSCAN " : "ok ") + query.name
+                        + " " + String.join(" <- ", stages));
+            } catch (MongoException e) {
+                output.println("\tFAILED " + query.name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void collectStages(Object plan, List<String> stages) {
+        if (plan instanceof Document doc) {
+            if (doc.get("stage") instanceof String stage)
+                stages.add(stage);
+            for (Object value : doc.values())
+                collectStages(value, stages);
+        } else if (plan instanceof List<?> list) {
+            for (Object value : list)
+                collectStages(value, stages);
+        }
+    }
+
+    private record Index(String collection, Bson keys, boolean unique) {
+        Document keysDoc() {
+            return Document.parse(keys.toBsonDocument().toJson());
+        }
+
+        @Override
+        public String toString() {
+            return collection + " " + keysDoc().toJson() + (unique ? " unique" : "");
+        }
+    }
+
+    private record Query(String name, String collection, Document filter, @Nullable Bson sort) { }
+}
@@ -20,6 +20,13 @@ public class Env {
     public static final RSAPrivateKey PRIVATE_KEY;
     public static final boolean INIT_SUCCESSFUL;
 
+    // Connection pool settings for the shared MongoClient owned by DB. All are optional in the .env file.
+    public static final int DB_MAX_POOL_SIZE = getInt("DB_MAX_POOL_SIZE", 100);
+    public static final int DB_MIN_POOL_SIZE = getInt("DB_MIN_POOL_SIZE", 0);
+    public static final long DB_MAX_WAIT_MS = getLong("DB_MAX_WAIT_MS", 2_000);
+    public static final long DB_MAX_IDLE_MS = getLong("DB_MAX_IDLE_MS", 60_000);
+    public static final long DB_MAX_LIFE_MS = getLong("DB_MAX_LIFE_MS", 0); // 0 means no limit.
+
     static {
         String dbURL = null;
         RSAPrivateKey privateKey = null;
@@ -52,4 +59,41 @@ public class Env {
     public static String get(String key) {
         return dotenv.get(key);
     }
+
+    /**
+     * @return The value of key parsed as an int, or def if it is not defined or is not a valid int.
+     */
+    public static int getInt(String key, int def) {
+        return (int) getLong(key, def);
+    }
+
+    /**
+     * @return The value of key parsed as a double, or def if it is not defined or is not a valid double.
+     */
+    public static double getDouble(String key, double def) {
+        String value = dotenv.get(key);
+        if (value == null || value.isBlank())
+            return def;
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("ENV variable " + key + " is not a valid number, using default of " + def + ".");
+            return def;
+        }
+    }
+
+    /**
+     * @return The value of key parsed as a long, or def if it is not defined or is not a valid long.
+     */
+    public static long getLong(String key, long def) {
+        String value = dotenv.get(key);
+        if (value == null || value.isBlank())
+            return def;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("ENV variable " + key + " is not a valid number, using default of " + def + ".");
+            return def;
+        }
+    }
 }
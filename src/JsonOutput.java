@@ -0,0 +1,368 @@
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes JSON straight into UTF-8 bytes in a single pass, without building documents or strings first. The bytes go
+ * through a fixed size buffer taken from a shared pool and returned to it when closed, so that each response does not
+ * allocate its own.
+ * <p>
+ * Records write their own fields with it (see Writable), other values are written the way Document.toJson() writes
+ * them (relaxed extended JSON), e.g. an ObjectId as {"$oid": ...} and a Date as {"$date": ...}.
+ * Commas between values are added as needed, so callers only pair beginObject() with endObject(), beginArray() with
+ * endArray(), and give every value of an object a name() first.
+ */
+public class JsonOutput implements Closeable {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+
+    private static final int MAX_DEPTH = 63;
+    private static final long MAX_ISO_DATE = 253402300799999L; // 9999-12-31T23:59:59.999Z, as the BSON JsonWriter.
+    private static final DateTimeFormatter DATE_FORMAT =
+            DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private byte[] buf;
+    private int count = 0;
+    private boolean flushed = false;
+
+    private int depth = 0;
+    private long nonEmpty = 0; // Bit per depth, set once the object or array at that depth has a value.
+    private boolean afterName = false;
+
+    public JsonOutput(OutputStream out) {
+        this.out = out;
+        byte[] pooled = POOL.poll();
+        buf = pooled != null ? pooled : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * @return The JSON written by value.
+     */
+    public static byte[] toBytes(Writable value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonOutput out = new JsonOutput(bytes);
+        try (out) {
+            value.writeJson(out);
+            if (!out.flushed) { // It fit in the buffer, copy it out once instead of through bytes.
+                byte[] json = Arrays.copyOf(out.buf, out.count);
+                out.count = 0;
+                return json;
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    public static String toString(Writable value) throws IOException {
+        return new String(toBytes(value), StandardCharsets.UTF_8);
+    }
+
+    public JsonOutput beginObject() throws IOException {
+        beforeValue();
+        writeByte('{');
+        push();
+        return this;
+    }
+
+    public JsonOutput endObject() throws IOException {
+        depth--;
+        writeByte('}');
+        return this;
+    }
+
+    public JsonOutput beginArray() throws IOException {
+        beforeValue();
+        writeByte('[');
+        push();
+        return this;
+    }
+
+    public JsonOutput endArray() throws IOException {
+        depth--;
+        writeByte(']');
+        return this;
+    }
+
+    /**
+     * Writes the name of the next value of the current object.
+     */
+    public JsonOutput name(String name) throws IOException {
+        beforeValue();
+        writeString(name);
+        writeByte(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonOutput field(String name, @Nullable String value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public JsonOutput field(String name, long value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public JsonOutput field(String name, boolean value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public JsonOutput field(String name, @Nullable Object value) throws IOException {
+        return name(name).value(value);
+    }
+
+    public JsonOutput value(@Nullable String value) throws IOException {
+        beforeValue();
+        if (value == null)
+            writeBytes(NULL);
+        else
+            writeString(value);
+        return this;
+    }
+
+    public JsonOutput value(long value) throws IOException {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    public JsonOutput value(double value) throws IOException {
+        if (!Double.isFinite(value)) // Not representable in JSON.
+            return beginObject().field("$numberDouble", Double.toString(value)).endObject();
+        beforeValue();
+        writeAscii(Double.toString(value));
+        return this;
+    }
+
+    public JsonOutput value(boolean value) throws IOException {
+        beforeValue();
+        writeBytes(value ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonOutput nullValue() throws IOException {
+        beforeValue();
+        writeBytes(NULL);
+        return this;
+    }
+
+    /**
+     * Writes a value that is already encoded as JSON, as is.
+     */
+    public JsonOutput rawValue(byte[] json, int offset, int length) throws IOException {
+        beforeValue();
+        if (count > buf.length - length) {
+            flushBuffer();
+            if (length > buf.length) {
+                out.write(json, offset, length);
+                return this;
+            }
+        }
+        System.arraycopy(json, offset, buf, count, length);
+        count += length;
+        return this;
+    }
+
+    /**
+     * Writes any value that Document.toJson() can write: null, a String, Number, Boolean, ObjectId, Date, Map (e.g.
+     * a Document) or Iterable of those, or a Writable.
+     * @throws IllegalArgumentException If value is of another type.
+     */
+    public JsonOutput value(@Nullable Object value) throws IOException {
+        switch (value) {
+            case null -> nullValue();
+            case String s -> value(s);
+            case Integer n -> value(n.longValue());
+            case Long n -> value(n.longValue());
+            case Short n -> value(n.longValue());
+            case Byte n -> value(n.longValue());
+            case Double n -> value(n.doubleValue());
+            case Float n -> value(n.doubleValue());
+            case Decimal128 n -> beginObject().field("$numberDecimal", n.toString()).endObject();
+            case Boolean b -> value(b.booleanValue());
+            case ObjectId id -> beginObject().field("$oid", id.toHexString()).endObject();
+            case Date date -> {
+                long millis = date.getTime();
+                beginObject().name("$date");
+                if (millis >= 0 && millis <= MAX_ISO_DATE)
+                    value(DATE_FORMAT.format(date.toInstant()));
+                else
+                    beginObject().field("$numberLong", Long.toString(millis)).endObject();
+                endObject();
+            }
+            case Writable w -> w.writeJson(this);
+            case Map<?, ?> map -> {
+                beginObject();
+                for (Map.Entry<?, ?> entry : map.entrySet())
+                    name(String.valueOf(entry.getKey())).value(entry.getValue());
+                endObject();
+            }
+            case Iterable<?> iterable -> {
+                beginArray();
+                for (Object item : iterable)
+                    value(item);
+                endArray();
+            }
+            default -> throw new IllegalArgumentException("Can not write a " + value.getClass().getName() + " as JSON.");
+        }
+        return this;
+    }
+
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buf == null)
+            return;
+        try {
+            flushBuffer();
+            out.close();
+        } finally {
+            if (POOL.size() < MAX_POOLED_BUFFERS)
+                POOL.offer(buf);
+            buf = null;
+        }
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0)
+            return;
+        long bit = 1L << depth;
+        if ((nonEmpty & bit) != 0)
+            writeByte(',');
+        else
+            nonEmpty |= bit;
+    }
+
+    private void push() {
+        if (++depth > MAX_DEPTH)
+            throw new IllegalStateException("JSON nested deeper than " + MAX_DEPTH + " levels.");
+        nonEmpty &= ~(1L << depth);
+    }
+
+    private void writeString(String s) throws IOException {
+        writeByte('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (count > buf.length - 6) // Longest that one char is written as.
+                flushBuffer();
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buf[count++] = (byte) c;
+                    continue;
+                }
+                buf[count++] = '\\';
+                switch (c) {
+                    case '"' -> buf[count++] = '"';
+                    case '\\' -> buf[count++] = '\\';
+                    case '\n' -> buf[count++] = 'n';
+                    case '\r' -> buf[count++] = 'r';
+                    case '\t' -> buf[count++] = 't';
+                    case '\b' -> buf[count++] = 'b';
+                    case '\f' -> buf[count++] = 'f';
+                    default -> {
+                        buf[count++] = 'u';
+                        buf[count++] = '0';
+                        buf[count++] = '0';
+                        buf[count++] = HEX[c >> 4];
+                        buf[count++] = HEX[c & 0xf];
+                    }
+                }
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (!Character.isSurrogate(c)) {
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else {
+                buf[count++] = '?'; // An unpaired surrogate, as String.getBytes() replaces it.
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) { // Its negation overflows.
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (count > buf.length - 20)
+            flushBuffer();
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10)
+            digits++;
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        if (count > buf.length - s.length())
+            flushBuffer();
+        for (int i = 0; i < s.length(); i++)
+            buf[count++] = (byte) s.charAt(i);
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        if (count > buf.length - bytes.length)
+            flushBuffer();
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    private void writeByte(char c) throws IOException {
+        if (count == buf.length)
+            flushBuffer();
+        buf[count++] = (byte) c;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+        flushed = true;
+    }
+
+    /**
+     * A value that writes itself as JSON, e.g. a record as the object sent to clients.
+     */
+    public interface Writable { void writeJson(JsonOutput out) throws IOException; }
+}
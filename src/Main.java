@@ -14,41 +14,22 @@ public class Main {
         }
 
         HttpServer server = null;
+        RequestExecutor executor = null;
 
         if (Env.INIT_SUCCESSFUL) {
+            executor = new RequestExecutor();
             try {
-                server = HttpServer.create(new InetSocketAddress(9500), -1);
+                server = createServer(new InetSocketAddress(9500), executor);
             } catch (IOException e) {
                 throw new Error(e);
             }
 
-            server.createContext("/api/signUp",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::signUp, e));
-            server.createContext("/api/signIn",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::signIn, e));
-            server.createContext("/api/getMyInfo",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getMyInfo, e));
-            server.createContext("/api/refreshAccess",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::refreshAccess, e));
-            server.createContext("/api/getReviews",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getReviews, e));
-            server.createContext("/api/createReview",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::createReview, e));
-            server.createContext("/api/getBathrooms",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBathrooms, e));
-            server.createContext("/api/getBuildings",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBuildings, e));
-            server.createContext("/api/getBuildingsWithBathrooms",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBuildingsWithBathrooms, e));
-            server.createContext("/api/getBathroomWithReviews",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBathroomWithReviews, e));
-            server.createContext("/api/getChats",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getChats, e));
-            server.createContext("/api/createChat",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::createChat, e));
-            server.createContext("/api/deleteChat",
-                    e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::deleteChat, e));
-
+            AccessLog.start();
+            DB.start();
+            DBIndexes.start();
+            Catalog.start();
+            ChatWriter.start();
+            RecentChats.start();
             server.start();
         } else {
             System.err.println("ENV initialization failed. THE SERVER IS NOT RUNNING! Fix the errors and relaunch the program.");
@@ -69,7 +50,59 @@ public class Main {
 
         if (Env.INIT_SUCCESSFUL) {
             System.out.println("Stopping, this may take ~10 seconds.");
+            ChatStream.stop();
             server.stop(10);
+            executor.shutdown();
         }
+        Catalog.stop();
+        ChatWriter.stop();
+        DB.stop();
+        AccessLog.stop();
+    }
+
+    /**
+     * Creates the server for the API with every endpoint registered, without starting it.
+     */
+    public static HttpServer createServer(InetSocketAddress address, RequestExecutor executor) throws IOException {
+        HttpServer server = HttpServer.create(address, -1);
+        server.setExecutor(executor);
+        Metrics.addGauge("tt_executor_in_flight", "Requests admitted by the executor.", executor::inFlight);
+        Metrics.addGauge("tt_executor_rejected_total", "Requests rejected with a 503 by the executor.",
+                executor::rejectedCount);
+
+        server.createContext("/api/signUp",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::signUp, e));
+        server.createContext("/api/signIn",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::signIn, e));
+        server.createContext("/api/getMyInfo",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getMyInfo, e));
+        server.createContext("/api/refreshAccess",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::refreshAccess, e));
+        server.createContext("/api/getReviews",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getReviews, e));
+        server.createContext("/api/createReview",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::createReview, e));
+        server.createContext("/api/getBathrooms",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBathrooms, e));
+        server.createContext("/api/getBuildings",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBuildings, e));
+        server.createContext("/api/getBuildingsWithBathrooms",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBuildingsWithBathrooms, e));
+        server.createContext("/api/getBathroomWithReviews",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getBathroomWithReviews, e));
+        server.createContext("/api/getChats",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::getChats, e));
+        server.createContext("/api/createChat",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::createChat, e));
+        server.createContext("/api/deleteChat",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::deleteChat, e));
+        server.createContext("/api/batch",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::batch, e));
+        server.createContext("/api/chatStream",
+                e -> ReqHandlers.handleUncaughtExceptions(ReqHandlers::chatStream, e));
+        server.createContext("/api/metrics",
+                e -> ReqHandlers.handleUncaughtExceptions(Metrics::handle, e));
+
+        return server;
     }
 }
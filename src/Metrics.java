@@ -0,0 +1,295 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Per endpoint request counts, status classes, latency histograms, byte counts and in flight gauges, plus JVM and
+ * other component gauges. Populated by ReqHandlers.handleUncaughtExceptions, served in the Prometheus text format by
+ * the /api/metrics endpoint and printed by the 'stats' command.
+ */
+public class Metrics {
+    private static final Map<String, Endpoint> ENDPOINTS = new ConcurrentHashMap<>();
+    private static final List<Gauge> GAUGES = new CopyOnWriteArrayList<>(List.of(
+            new Gauge("tt_db_pool_size", "Open connections in the database pool.", () -> DB.poolStats().size()),
+            new Gauge("tt_db_pool_checked_out", "Database connections in use.", () -> DB.poolStats().checkedOut()),
+            new Gauge("tt_db_pool_wait_queue", "Requests waiting for a database connection.",
+                    () -> DB.poolStats().waitQueue()),
+            new Gauge("tt_token_cache_hits_total", "Access token cache hits.", () -> Auth.tokenCacheStats().hits()),
+            new Gauge("tt_token_cache_misses_total", "Access token cache misses.",
+                    () -> Auth.tokenCacheStats().misses()),
+            new Gauge("tt_response_cache_hits_total", "Responses served from the response cache.",
+                    () -> ResponseCache.stats().hits()),
+            new Gauge("tt_response_cache_misses_total", "Responses that were not in the response cache.",
+                    () -> ResponseCache.stats().misses()),
+            new Gauge("tt_response_cache_bytes", "Size of the responses in the response cache.",
+                    () -> ResponseCache.stats().bytes()),
+            new Gauge("tt_compression_bytes_in_total", "Bytes of responses before compression.",
+                    () -> Compression.stats().bytesIn()),
+            new Gauge("tt_compression_bytes_out_total", "Bytes of responses after compression.",
+                    () -> Compression.stats().bytesOut()),
+            new Gauge("tt_compression_seconds_total", "CPU time spent compressing responses.",
+                    () -> Compression.stats().nanos() / 1e9),
+            new Gauge("tt_chat_stream_subscribers", "Clients subscribed to the live chat stream.",
+                    () -> ChatStream.stats().subscribers()),
+            new Gauge("tt_chat_stream_dropped_slow_total", "Chat stream subscribers disconnected for falling behind.",
+                    () -> ChatStream.stats().slowDropped()),
+            new Gauge("tt_chat_writes_queued", "Chats waiting to be inserted.", () -> ChatWriter.stats().queued()),
+            new Gauge("tt_chat_write_batches_total", "Batches of chats inserted.", () -> ChatWriter.stats().batches()),
+            new Gauge("tt_chat_writes_total", "Chats inserted in batches.", () -> ChatWriter.stats().chats()),
+            new Gauge("tt_recent_chats_hits_total", "getChats pages answered from the recent chats in memory.",
+                    () -> RecentChats.stats().hits()),
+            new Gauge("tt_recent_chats_misses_total", "getChats pages read from the database.",
+                    () -> RecentChats.stats().misses()),
+            new Gauge("tt_bcrypt_queued", "Password hashing jobs waiting.", () -> PasswordHasher.stats().queued()),
+            new Gauge("tt_bcrypt_rejected_total", "Password hashing jobs rejected because the pool was full.",
+                    () -> PasswordHasher.stats().rejected()),
+            new Gauge("tt_access_log_dropped_total", "Access log records dropped because the buffer was full.",
+                    AccessLog::droppedCount)));
+
+    /**
+     * Adds a gauge to the metrics output, e.g. for a component that is created at startup. A gauge with the same name
+     * is replaced, so that a component created again (e.g. a server restarted by LoadTest) is not reported twice.
+     */
+    public static synchronized void addGauge(String name, String help, Supplier<Number> value) {
+        Gauge gauge = new Gauge(name, help, value);
+        for (int i = 0; i < GAUGES.size(); i++) {
+            if (GAUGES.get(i).name().equals(name)) {
+                GAUGES.set(i, gauge);
+                return;
+            }
+        }
+        GAUGES.add(gauge);
+    }
+
+    public static void begin(String endpoint) {
+        endpoint(endpoint).inFlight.incrementAndGet();
+    }
+
+    public static void end(String endpoint, int status, long durationNanos, long reqBytes, long resBytes) {
+        Endpoint metrics = endpoint(endpoint);
+        metrics.inFlight.decrementAndGet();
+        metrics.count.increment();
+        int statusClass = status / 100;
+        metrics.statusClasses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+        metrics.latency.record(durationNanos / 1_000);
+        metrics.latencyNanos.add(durationNanos);
+        metrics.reqBytes.add(reqBytes);
+        metrics.resBytes.add(resBytes);
+    }
+
+    /**
+     * Handler for the /api/metrics endpoint.
+     */
+    public static void handle(HttpExchange e) throws IOException {
+        byte[] response = prometheus().getBytes(StandardCharsets.UTF_8);
+        e.getResponseHeaders().put("Content-Type", List.of("text/plain; version=0.0.4; charset=utf-8"));
+        e.sendResponseHeaders(ResponseCodes.OK, response.length);
+        try (OutputStream out = e.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    public static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        Map<String, Endpoint> endpoints = new TreeMap<>(ENDPOINTS);
+
+        sb.append("# HELP tt_requests_total Requests handled, by endpoint and status class.\n");
+        sb.append("# TYPE tt_requests_total counter\n");
+        for (Map.Entry<String, Endpoint> endpoint : endpoints.entrySet()) {
+            for (int i = 0; i < 6; i++) {
+                long count = endpoint.getValue().statusClasses[i].sum();
+                if (count > 0)
+                    sb.append("tt_requests_total{endpoint=\"").append(endpoint.getKey()).append("\",status=\"")
+                            .append(i == 0 ? "none" : i + "xx").append("\"} ").append(count).append('\n');
+            }
+        }
+
+        sb.append("# HELP tt_request_duration_seconds Time taken to handle requests, by endpoint.\n");
+        sb.append("# TYPE tt_request_duration_seconds summary\n");
+        for (Map.Entry<String, Endpoint> endpoint : endpoints.entrySet()) {
+            Endpoint metrics = endpoint.getValue();
+            long[] snapshot = metrics.latency.snapshot();
+            for (double quantile : new double[] { 0.5, 0.99, 0.999 })
+                sb.append("tt_request_duration_seconds{endpoint=\"").append(endpoint.getKey())
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(Histogram.quantile(snapshot, quantile) / 1_000_000.0).append('\n');
+            sb.append("tt_request_duration_seconds_sum{endpoint=\"").append(endpoint.getKey()).append("\"} ")
+                    .append(metrics.latencyNanos.sum() / 1_000_000_000.0).append('\n');
+            sb.append("tt_request_duration_seconds_count{endpoint=\"").append(endpoint.getKey()).append("\"} ")
+                    .append(metrics.count.sum()).append('\n');
+        }
+
+        appendPerEndpoint(sb, endpoints, "tt_request_bytes_total", "Request body bytes read.", "counter",
+                m -> m.reqBytes.sum());
+        appendPerEndpoint(sb, endpoints, "tt_response_bytes_total", "Response body bytes written.", "counter",
+                m -> m.resBytes.sum());
+        appendPerEndpoint(sb, endpoints, "tt_requests_in_flight", "Requests currently being handled.", "gauge",
+                m -> (long) m.inFlight.get());
+
+        for (Gauge gauge : jvmGauges())
+            gauge.append(sb);
+        for (Gauge gauge : GAUGES)
+            gauge.append(sb);
+
+        return sb.toString();
+    }
+
+    /**
+     * Prints a human readable summary, used by the 'stats' command.
+     */
+    public static void print(PrintStream output) {
+        output.printf("%-32s %9s %7s %7s %7s %9s %9s %9s %8s%n",
+                "endpoint", "count", "2xx", "4xx", "5xx", "p50 ms", "p99 ms", "p999 ms", "inFlight");
+        for (Map.Entry<String, Endpoint> endpoint : new TreeMap<>(ENDPOINTS).entrySet()) {
+            Endpoint m = endpoint.getValue();
+            long[] snapshot = m.latency.snapshot();
+            output.printf("%-32s %9d %7d %7d %7d %9.2f %9.2f %9.2f %8d%n",
+                    endpoint.getKey(), m.count.sum(),
+                    m.statusClasses[2].sum(), m.statusClasses[4].sum(), m.statusClasses[5].sum(),
+                    Histogram.quantile(snapshot, 0.5) / 1_000.0,
+                    Histogram.quantile(snapshot, 0.99) / 1_000.0,
+                    Histogram.quantile(snapshot, 0.999) / 1_000.0,
+                    m.inFlight.get());
+        }
+        for (Gauge gauge : jvmGauges())
+            output.println(gauge.name + " " + gauge.value.get());
+        for (Gauge gauge : GAUGES)
+            output.println(gauge.name + " " + gauge.value.get());
+    }
+
+    private static Endpoint endpoint(String endpoint) {
+        return ENDPOINTS.computeIfAbsent(endpoint, k -> new Endpoint());
+    }
+
+    private static void appendPerEndpoint(StringBuilder sb, Map<String, Endpoint> endpoints, String name, String help,
+                                          String type, Function<Endpoint, Long> value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Map.Entry<String, Endpoint> endpoint : endpoints.entrySet())
+            sb.append(name).append("{endpoint=\"").append(endpoint.getKey()).append("\"} ")
+                    .append(value.apply(endpoint.getValue())).append('\n');
+    }
+
+    private static List<Gauge> jvmGauges() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        long finalGcCount = gcCount;
+        double gcSeconds = gcMillis / 1_000.0;
+        return List.of(
+                new Gauge("jvm_heap_used_bytes", "Heap memory in use.", heap::getUsed),
+                new Gauge("jvm_heap_committed_bytes", "Heap memory committed.", heap::getCommitted),
+                new Gauge("jvm_heap_max_bytes", "Maximum heap memory.", heap::getMax),
+                new Gauge("jvm_gc_collections_total", "Garbage collections.", () -> finalGcCount),
+                new Gauge("jvm_gc_time_seconds_total", "Time spent in garbage collection.", () -> gcSeconds),
+                new Gauge("jvm_threads_live", "Live platform threads.", threads::getThreadCount),
+                new Gauge("jvm_threads_daemon", "Live daemon threads.", threads::getDaemonThreadCount));
+    }
+
+    private static class Endpoint {
+        private final LongAdder count = new LongAdder();
+        // Index 1 to 5 is the status class (e.g. 2 for 2xx), 0 is for requests that got no response.
+        private final LongAdder[] statusClasses = new LongAdder[6];
+        private final Histogram latency = new Histogram();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final LongAdder reqBytes = new LongAdder();
+        private final LongAdder resBytes = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Endpoint() {
+            for (int i = 0; i < statusClasses.length; i++)
+                statusClasses[i] = new LongAdder();
+        }
+    }
+
+    private record Gauge(String name, String help, Supplier<Number> value) {
+        void append(StringBuilder sb) {
+            sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(name.endsWith("_total") ? "counter" : "gauge")
+                    .append('\n');
+            sb.append(name).append(' ').append(value.get()).append('\n');
+        }
+    }
+
+    /**
+     * Log linear histogram of non negative values: values below 16 get their own bucket, above that every power of two
+     * is split into 16 buckets, so values are recorded with at most 1/16 relative error.
+     * Histograms (or their snapshots) can be merged by adding up their buckets.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 16;
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        public void record(long value) {
+            counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        public long[] snapshot() {
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                snapshot[i] = counts.get(i);
+            return snapshot;
+        }
+
+        /**
+         * @return The upper bound of the bucket containing the given quantile of the values in snapshot.
+         */
+        public static long quantile(long[] snapshot, double quantile) {
+            long total = 0;
+            for (long count : snapshot)
+                total += count;
+            if (total == 0)
+                return 0;
+
+            long target = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= target)
+                    return upperBound(i);
+            }
+            return upperBound(snapshot.length - 1);
+        }
+
+        static int index(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
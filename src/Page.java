@@ -0,0 +1,170 @@
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * The paging options of a list request.
+ * <p>
+ * Clients either send a "page" number (page mode, the original behaviour) or a "cursor" (cursor mode). In cursor
+ * mode the first page is requested with an empty or null cursor, and each response contains the "nextCursor" to send
+ * for the following page (null when there are no more items). Cursors are the _id of the last item returned, so
+ * fetching any page costs the same as fetching the first and items inserted meanwhile do not shift the results.
+ * <p>
+ * Either mode accepts an optional "pageSize", capped at MAX_SIZE.
+ */
+public record Page(int number, @Nullable ObjectId after, boolean cursorMode, int size) {
+    public static final int BASE_NUMBER = 1; // Page numbers start at 1
+    public static final int MAX_SIZE = 100;
+
+    private static final Base64.Encoder CURSOR_ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder CURSOR_DECODER = Base64.getUrlDecoder();
+
+    /**
+     * Reads the paging options from a request body. Missing options fall back to the first page of MAX_SIZE items.
+     * @throws RequestBody.Invalid If an option has the wrong type, or a cursor was sent but it was not one produced by
+     * this class.
+     */
+    public static Page from(RequestBody.Fields body) throws RequestBody.Invalid {
+        int size = MAX_SIZE;
+        Integer pageSize = body.optionalInteger("pageSize", "pageSize must be an integer.");
+        if (pageSize != null)
+            size = Math.max(1, Math.min(MAX_SIZE, pageSize));
+
+        if (body.has("cursor")) {
+            String cursor = body.optionalString("cursor");
+            ObjectId after = null;
+            if (cursor != null && !cursor.isEmpty()) {
+                try {
+                    after = new ObjectId(CURSOR_DECODER.decode(cursor));
+                } catch (IllegalArgumentException ex) {
+                    throw new RequestBody.Invalid("Cursor is invalid.");
+                }
+            }
+            return new Page(BASE_NUMBER, after, true, size);
+        }
+
+        int number = BASE_NUMBER;
+        Integer page = body.optionalInteger("page", "page must be an integer.");
+        if (page != null)
+            number = Math.max(BASE_NUMBER, page);
+        if ((long) (number - BASE_NUMBER) * size > Integer.MAX_VALUE) // More than a query can skip.
+            throw new RequestBody.Invalid("page is too large.");
+        return new Page(number, null, false, size);
+    }
+
+    /**
+     * Finds this page of the documents in collection matching filter, ordered by _id.
+     */
+    public <T extends Item> Result<T> fetch(MongoCollection<T> collection, Bson filter) {
+        return toResult(find(collection, filter, false).into(new ArrayList<>(size + 1)));
+    }
+
+    /**
+     * Finds this page of the documents in collection matching filter, ordered by _id from the highest (the newest).
+     * Its cursors must only be used with this method.
+     */
+    public <T extends Item> Result<T> fetchNewestFirst(MongoCollection<T> collection, Bson filter) {
+        return toResult(find(collection, filter, true).into(new ArrayList<>(size + 1)));
+    }
+
+    private <T> FindIterable<T> find(MongoCollection<T> collection, Bson filter, boolean newestFirst) {
+        // One extra document is fetched to know whether there is a next page without another query.
+        Bson afterCursor = after == null ? filter
+                : Filters.and(filter, newestFirst ? Filters.lt("_id", after) : Filters.gt("_id", after));
+        return collection.find(afterCursor)
+                .sort(newestFirst ? Sorts.descending("_id") : Sorts.ascending("_id"))
+                .skip((int) skip()) // Fits, see from().
+                .limit(size + 1);
+    }
+
+    /**
+     * @param docs The documents returned by find(), at most one more than a page.
+     */
+    private <T extends Item> Result<T> toResult(List<T> docs) {
+        String nextCursor = null;
+        if (docs.size() > size) {
+            docs.remove(size);
+            nextCursor = encodeCursor(docs.get(size - 1).id());
+        }
+        return new Result<>(docs, nextCursor);
+    }
+
+    /**
+     * Selects this page of docs without a query, e.g. from the Catalog.
+     * @param docs Every document that could be in the page, ordered by _id.
+     * @return The page, as a view of docs.
+     */
+    public <T extends Item> Result<T> slice(List<T> docs) {
+        int from;
+        if (after != null) {
+            int low = 0;
+            int high = docs.size();
+            while (low < high) { // Index of the first document after the cursor.
+                int mid = (low + high) >>> 1;
+                if (docs.get(mid).id().compareTo(after) <= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            from = low;
+        } else {
+            from = (int) Math.min(docs.size(), skip());
+        }
+        int to = Math.min(docs.size(), from + size);
+        List<T> page = docs.subList(from, to);
+        return new Result<>(page, to < docs.size() ? encodeCursor(page.get(page.size() - 1).id()) : null);
+    }
+
+    /**
+     * Selects this page of docs without a query, like fetchNewestFirst().
+     * @param docs The newest documents matching the request's filter, ordered by _id from the highest.
+     * @param all True if docs are all the matching documents, false if there may be older ones.
+     * @return The page as a view of docs, or null if it may contain documents older than those in docs.
+     */
+    public <T extends Item> @Nullable Result<T> sliceNewestFirst(List<T> docs, boolean all) {
+        int from;
+        if (after != null) {
+            int low = 0;
+            int high = docs.size();
+            while (low < high) { // Index of the first document older than the cursor.
+                int mid = (low + high) >>> 1;
+                if (docs.get(mid).id().compareTo(after) >= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            from = low;
+        } else {
+            from = (int) Math.min(docs.size(), skip());
+        }
+        int to = Math.min(docs.size(), from + size);
+        boolean hasNext = to < docs.size();
+        if (!hasNext && !all)
+            return null;
+        List<T> page = docs.subList(from, to);
+        return new Result<>(page, hasNext ? encodeCursor(page.get(page.size() - 1).id()) : null);
+    }
+
+    private static String encodeCursor(ObjectId lastId) {
+        return CURSOR_ENCODER.encodeToString(lastId.toByteArray());
+    }
+
+    private long skip() {
+        return cursorMode ? 0 : (long) (number - BASE_NUMBER) * size;
+    }
+
+    /**
+     * Anything that is paged, i.e. a document with an _id.
+     */
+    public interface Item { ObjectId id(); }
+
+    public record Result<T>(List<T> docs, @Nullable String nextCursor) { }
+}
@@ -0,0 +1,111 @@
+import org.mindrot.jbcrypt.BCrypt;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs BCrypt hashing and verification on a dedicated pool of BCRYPT_THREADS threads, with at most BCRYPT_QUEUE
+ * waiting jobs, so that a burst of sign ins cannot take up every request thread. When the queue is full the job is
+ * rejected right away with Auth.Busy instead of waiting.
+ * New hashes use a cost of BCRYPT_COST, and hashes with a different cost should be replaced on the next successful
+ * sign in (see needsRehash()).
+ */
+public class PasswordHasher {
+    public static final int COST = Env.getInt("BCRYPT_COST", 10);
+
+    private static final ThreadPoolExecutor POOL;
+    private static final LongAdder jobs = new LongAdder();
+    private static final LongAdder jobNanos = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+
+    static {
+        int threads = Env.getInt("BCRYPT_THREADS", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        int queue = Env.getInt("BCRYPT_QUEUE", 64);
+        POOL = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queue),
+                r -> {
+                    Thread t = new Thread(r, "bcrypt");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    public static String hash(String password) throws Auth.Busy, Auth.InternalError {
+        return run(() -> BCrypt.hashpw(password, BCrypt.gensalt(COST)));
+    }
+
+    public static boolean check(String password, String hash) throws Auth.Busy, Auth.InternalError {
+        return run(() -> BCrypt.checkpw(password, hash));
+    }
+
+    /**
+     * @return True if hash was not made with the current cost.
+     */
+    public static boolean needsRehash(String hash) {
+        // BCrypt hashes look like $2a$10$..., where 10 is the cost.
+        try {
+            return Integer.parseInt(hash.substring(4, 6)) != COST;
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Hashes password in the background and passes the hash to onHashed, unless the pool is busy in which case
+     * nothing happens.
+     */
+    public static void hashLater(String password, Consumer<String> onHashed) {
+        try {
+            POOL.execute(() -> onHashed.accept(timed(() -> BCrypt.hashpw(password, BCrypt.gensalt(COST)))));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+        }
+    }
+
+    public static Stats stats() {
+        long count = jobs.sum();
+        return new Stats(POOL.getQueue().size(), POOL.getActiveCount(), POOL.getMaximumPoolSize(), count,
+                rejected.sum(), count == 0 ? 0 : jobNanos.sum() / count / 1_000_000.0, COST);
+    }
+
+    private static <T> T run(Callable<T> job) throws Auth.Busy, Auth.InternalError {
+        Future<T> future;
+        try {
+            future = POOL.submit(() -> timed(job));
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            throw new Auth.Busy();
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new Auth.InternalError();
+        } catch (ExecutionException e) {
+            System.err.println("Password hashing failed: " + e.getCause());
+            throw new Auth.InternalError();
+        }
+    }
+
+    private static <T> T timed(Callable<T> job) {
+        long start = System.nanoTime();
+        try {
+            return job.call();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            jobNanos.add(System.nanoTime() - start);
+            jobs.increment();
+        }
+    }
+
+    public record Stats(int queued, int active, int threads, long jobs, long rejected, double avgMillis, int cost) {
+        @Override
+        public String toString() {
+            return "queued=" + queued + " active=" + active + "/" + threads + " jobs=" + jobs
+                    + " rejected=" + rejected + String.format(" avg=%.1fms", avgMillis) + " cost=" + cost;
+        }
+    }
+}
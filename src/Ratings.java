@@ -0,0 +1,99 @@
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maintains the rating aggregates stored on each bathroom document so that its average rating never requires reading
+ * its reviews:
+ * ratingSum (sum of all ratings), ratingCount (number of reviews) and ratingHistogram (number of reviews per rating,
+ * keyed by the rating as a string).
+ * They are updated with $inc whenever a review is created, replaced or deleted, and can be rebuilt from the reviews
+ * collection with rebuild(). Either way the new aggregates are passed on to the Catalog.
+ */
+public class Ratings {
+    public static final int MIN_RATING = 0;
+    public static final int MAX_RATING = 5;
+
+    public static boolean isValid(int rating) {
+        return rating >= MIN_RATING && rating <= MAX_RATING;
+    }
+
+    /**
+     * Updates the aggregates of a bathroom after one of its reviews changed.
+     * @param oldRating The rating of the review before the change, null if the review was created.
+     * @param newRating The rating of the review after the change, null if the review was deleted.
+     */
+    public static void onReviewChanged(MongoDatabase db, String bathroomid,
+                                       @Nullable Integer oldRating, @Nullable Integer newRating) {
+        if (oldRating != null && oldRating.equals(newRating))
+            return;
+
+        List<Bson> incs = new ArrayList<>(4);
+        int sum = 0;
+        int count = 0;
+        if (oldRating != null) {
+            sum -= oldRating;
+            count--;
+            incs.add(Updates.inc("ratingHistogram." + oldRating, -1));
+        }
+        if (newRating != null) {
+            sum += newRating;
+            count++;
+            incs.add(Updates.inc("ratingHistogram." + newRating, 1));
+        }
+        incs.add(Updates.inc("ratingSum", sum));
+        incs.add(Updates.inc("ratingCount", count));
+        Bathroom updated = db.getCollection("bathrooms", Bathroom.class).findOneAndUpdate(
+                new Document("bathroomid", bathroomid), Updates.combine(incs), new FindOneAndUpdateOptions()
+                        .projection(Projections.include("bathroomid", "ratingSum", "ratingCount", "ratingHistogram"))
+                        .returnDocument(ReturnDocument.AFTER));
+        if (updated != null)
+            Catalog.updateRating(updated);
+    }
+
+    /**
+     * Recomputes the aggregates of every bathroom from the reviews collection.
+     * Reviews written while this runs may be counted twice or not at all, so run it again if that happens.
+     * @return The number of bathrooms that have reviews.
+     */
+    public static long rebuild(MongoDatabase db) {
+        List<WriteModel<Document>> writes = new ArrayList<>();
+
+        // Bathrooms without any reviews are not in the aggregation below, so reset everything first.
+        Document emptyHistogram = new Document();
+        for (int rating = MIN_RATING; rating <= MAX_RATING; rating++)
+            emptyHistogram.append(Integer.toString(rating), 0);
+        writes.add(new UpdateManyModel<>(new Document(), Updates.combine(
+                Updates.set("ratingSum", 0),
+                Updates.set("ratingCount", 0),
+                Updates.set("ratingHistogram", emptyHistogram),
+                Updates.unset("average"))));
+
+        List<Bson> pipeline = List.of(
+                Aggregates.group(new Document("bathroomid", "$bathroomid").append("rating", "$rating"),
+                        Accumulators.sum("count", 1)),
+                Aggregates.group("$_id.bathroomid",
+                        Accumulators.sum("ratingSum", new Document("$multiply", List.of("$_id.rating", "$count"))),
+                        Accumulators.sum("ratingCount", "$count"),
+                        Accumulators.push("histogram", new Document("k", new Document("$toString", "$_id.rating"))
+                                .append("v", "$count"))));
+        for (Document d : db.getCollection("reviews").aggregate(pipeline)) {
+            Document histogram = new Document(emptyHistogram);
+            for (Document entry : d.getList("histogram", Document.class))
+                histogram.put(entry.getString("k"), entry.get("v"));
+            writes.add(new UpdateOneModel<>(new Document("bathroomid", d.getString("_id")), Updates.combine(
+                    Updates.set("ratingSum", d.get("ratingSum")),
+                    Updates.set("ratingCount", d.get("ratingCount")),
+                    Updates.set("ratingHistogram", histogram))));
+        }
+
+        db.getCollection("bathrooms").bulkWrite(writes, new BulkWriteOptions().ordered(true));
+        Catalog.reload(db);
+        return writes.size() - 1;
+    }
+}
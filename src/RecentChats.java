@@ -0,0 +1,152 @@
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The newest CHAT_HOT_SIZE chats (default 1000) in memory, as getChats sends them (see Chats.withUsernames), so that
+ * getChats answers the first pages without a query. Only pages reaching past the oldest of them are read from the
+ * database.
+ * <p>
+ * They are loaded at startup and kept up to date by createChat and deleteChat. Like the Catalog, the list is never
+ * modified, every change swaps in a new one, so readers need no lock. Call reload() after changing chats directly in
+ * the database.
+ */
+public class RecentChats {
+    private static final int SIZE = Math.max(1, Env.getInt("CHAT_HOT_SIZE", 1000));
+    private static final long RETRY_SECONDS = 5;
+
+    private static volatile Snapshot snapshot = new Snapshot(List.of(), false);
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    /**
+     * Loads the recent chats. If that fails (e.g. the database is down), they are loaded in the background, retried
+     * every RETRY_SECONDS until it succeeds. Until then the snapshot is empty and not all the chats, so getChats reads
+     * them from the database instead.
+     */
+    public static void start() {
+        if (loadQuietly())
+            return;
+        Thread t = new Thread(() -> {
+            do {
+                try {
+                    Thread.sleep(RETRY_SECONDS * 1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } while (!loadQuietly());
+        }, "recent-chats-load");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static boolean loadQuietly() {
+        try {
+            reload(DB.db());
+            return true;
+        } catch (RuntimeException e) {
+            System.err.println("Failed to load the recent chats, retrying in " + RETRY_SECONDS + "s: " + e);
+            return false;
+        }
+    }
+
+    public static synchronized void reload(MongoDatabase db) {
+        List<Chat> chats = db.getCollection("chats", Chat.class).find()
+                .sort(Sorts.descending("_id"))
+                .limit(SIZE + 1)
+                .into(new ArrayList<>(SIZE + 1));
+        boolean all = chats.size() <= SIZE;
+        if (!all)
+            chats.remove(SIZE);
+        snapshot = new Snapshot(List.copyOf(Chats.withUsernames(db, chats)), all);
+    }
+
+    /**
+     * @param chat A chat that was just inserted.
+     */
+    public static synchronized void add(Chat.WithUsername chat) {
+        Snapshot s = snapshot;
+        ObjectId id = chat.id();
+        // Chats are usually added newest first, but batches may be acknowledged out of order.
+        int index = 0;
+        while (index < s.chats.size() && s.chats.get(index).id().compareTo(id) > 0)
+            index++;
+
+        List<Chat.WithUsername> chats = new ArrayList<>(s.chats.size() + 1);
+        chats.addAll(s.chats.subList(0, index));
+        chats.add(chat);
+        chats.addAll(s.chats.subList(index, s.chats.size()));
+        boolean all = s.all;
+        if (chats.size() > SIZE) {
+            chats.remove(chats.size() - 1);
+            all = false;
+        }
+        snapshot = new Snapshot(List.copyOf(chats), all);
+    }
+
+    public static synchronized void remove(String chatid) {
+        Snapshot s = snapshot;
+        List<Chat.WithUsername> chats = new ArrayList<>(s.chats);
+        if (chats.removeIf(chat -> chatid.equals(chat.chat().chatid())))
+            snapshot = new Snapshot(List.copyOf(chats), s.all);
+    }
+
+    /**
+     * @return The page of chats created between since and before (either may be null), or null if the page may
+     * contain chats older than those kept here and must be read from the database.
+     */
+    public static Page.@Nullable Result<Chat.WithUsername> page(Page page, @Nullable Instant since,
+                                                                @Nullable Instant before) {
+        Snapshot s = snapshot;
+        List<Chat.WithUsername> matching = s.chats;
+        if (since != null || before != null) {
+            matching = new ArrayList<>();
+            for (Chat.WithUsername chat : s.chats)
+                if (Chats.isBetween(chat.chat(), since, before))
+                    matching.add(chat);
+        }
+
+        // No chat older than those kept can be after since. The second is for chats whose _id came after another's
+        // createdAt (see Chats).
+        boolean all = s.all;
+        if (!all && since != null && !s.chats.isEmpty()) {
+            Date oldest = s.chats.get(s.chats.size() - 1).chat().createdAt();
+            all = oldest != null && !oldest.toInstant().plusSeconds(1).isAfter(since);
+        }
+
+        Page.Result<Chat.WithUsername> result = page.sliceNewestFirst(matching, all);
+        if (result != null)
+            hits.increment();
+        else
+            misses.increment();
+        return result;
+    }
+
+    public static Stats stats() {
+        Snapshot s = snapshot;
+        return new Stats(s.chats.size(), SIZE, s.all, hits.sum(), misses.sum());
+    }
+
+    /**
+     * @param chats The newest chats, ordered by _id from the highest.
+     * @param all True if these are all the chats.
+     */
+    private record Snapshot(List<Chat.WithUsername> chats, boolean all) { }
+
+    public record Stats(int chats, int maxChats, boolean all, long hits, long misses) {
+        @Override
+        public String toString() {
+            long lookups = hits + misses;
+            return "chats=" + chats + "/" + maxChats + (all ? " (all of them)" : "") + " hits=" + hits
+                    + " misses=" + misses
+                    + String.format(" hitRate=%.1f%%", lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+        }
+    }
+}
@@ -1,19 +1,21 @@
 import com.auth0.jwt.exceptions.JWTVerificationException;
 import com.auth0.jwt.interfaces.DecodedJWT;
 import com.mongodb.client.*;
+import com.mongodb.client.model.FindOneAndReplaceOptions;
+import com.mongodb.client.model.ReturnDocument;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import org.bson.Document;
 import org.jetbrains.annotations.Nullable;
-import org.json.JSONArray;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.time.Instant;
 
 /*
  * This file defines Request Handlers that will be called by the HttpServer when a request with a specific context
@@ -24,8 +26,13 @@ import java.util.UUID;
  */
 
 public class ReqHandlers {
-    private static final int ITEMS_PER_PAGE = 100;
-    private static final int BASE_PAGE_NUMBER = 1; // Page numbers start at 1
+    private static final int MAX_BATHROOMS_PER_BUILDING = 100;
+
+    // How long responses stay in the ResponseCache. Writes made through the API invalidate them right away, so these
+    // only bound how stale they get after changes made some other way.
+    private static final long CATALOG_CACHE_TTL_MS = 5 * 60_000;
+    private static final long REVIEWS_CACHE_TTL_MS = 60_000;
+    private static final long CHATS_CACHE_TTL_MS = 10_000;
 
     private static final byte[] INVALID_METHOD_RESPONSE =
             "{ \"error\": \"Method not allowed.\" }".getBytes(StandardCharsets.UTF_8);
@@ -43,37 +50,55 @@ public class ReqHandlers {
             "{ \"error\": \"User with that username already exists.\" }".getBytes(StandardCharsets.UTF_8);
     private static final byte[] UNAUTHORIZED_SIGN_IN_RESPONSE =
             "{ \"error\": \"Invalid username or password.\" }".getBytes(StandardCharsets.UTF_8);
-    private static final byte[] BATHROOM_ID_NOT_PRESENT_RESPONSE =
-            "{ \"error\": \"Bathroom id not present in request.\" }".getBytes(StandardCharsets.UTF_8);
-    private static final byte[] BUILDING_ID_NOT_PRESENT_RESPONSE =
-            "{ \"error\": \"Building id not present in request.\" }".getBytes(StandardCharsets.UTF_8);
     private static final byte[] UNAUTHORIZED_REFRESH =
             "{ \"error\": \"Token sent could not authorize an access refresh.\" }".getBytes(StandardCharsets.UTF_8);
     private static final byte[] UNAUTHORIZED_CREATE_REVIEW =
             "{ \"error\": \"Token sent could not authorize a create review.\" }".getBytes(StandardCharsets.UTF_8);
     private static final byte[] BATHROOM_DOES_NOT_EXIST_RESPONSE =
             "{ \"error\": \"The bathroom with the specified id does not exist.\" }".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BUILDING_DOES_NOT_EXIST_RESPONSE =
+            "{ \"error\": \"The building of the bathroom does not exist.\" }".getBytes(StandardCharsets.UTF_8);
     private static final byte[] NOT_SIGNED_IN_RESPONSE =
             "{ \"error\": \"Not signed in.\" }".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] INVALID_RATING_RESPONSE =
+            ("{ \"error\": \"Rating must be between " + Ratings.MIN_RATING + " and " + Ratings.MAX_RATING + ".\" }")
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] REQUEST_TOO_LARGE_RESPONSE =
+            ("{ \"error\": \"Request body is over " + RequestBody.MAX_BYTES + " bytes.\" }")
+                    .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SERVER_BUSY_RESPONSE =
+            "{ \"error\": \"Server is busy, try again later.\" }".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CHAT_STREAM_UNAVAILABLE_RESPONSE =
+            "{ \"error\": \"Live chat is not available, use getChats instead.\" }".getBytes(StandardCharsets.UTF_8);
 
     /**
      * Helper method that calls an HttpHandler with the provided HttpExchange
      * and catches and prints all uncaught exceptions.
-     * Also closes the exchange after the handler returns or an exception is caught to keep from freezing up the client.
+     * Also closes the exchange after the handler returns or an exception is caught to keep from freezing up the client,
+     * and records the request in the AccessLog and Metrics.
      * @param handler The handler to call.
      * @param e The exchange to pass to the handler when calling it.
      */
     public static void handleUncaughtExceptions(HttpHandler handler, HttpExchange e) {
-        System.out.println("Request");
-        System.out.println(e.getRequestURI());
+        String endpoint = e.getHttpContext().getPath();
+        AccessLog.Exchange logged = AccessLog.begin(e);
+        Metrics.begin(endpoint);
+        try {
+            callHandler(handler, e);
+        } finally {
+            Metrics.end(endpoint, e.getResponseCode(), logged.elapsedNanos(), logged.in().count(), logged.out().count());
+            AccessLog.end(e, logged);
+        }
+    }
 
+    private static void callHandler(HttpHandler handler, HttpExchange e) {
         e.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
         e.getResponseHeaders().add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
-        e.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type");
+        e.getResponseHeaders().add("Access-Control-Allow-Headers", "Content-Type, If-None-Match");
+        e.getResponseHeaders().add("Access-Control-Expose-Headers", "ETag");
         e.getResponseHeaders().put("Content-Type", List.of("application/json"));
 
         if ("OPTIONS".equalsIgnoreCase(e.getRequestMethod())) {
-            System.out.println("OPTIONS");
             try{
                 e.sendResponseHeaders(200, 0);
                 e.close();
@@ -83,7 +108,15 @@ public class ReqHandlers {
             return;
         }
 
-        System.out.println("Request received!");
+        if (RequestExecutor.isRejected()) {
+            try {
+                closeOutBusy(e);
+            } catch (IOException ex) {
+                printException(e, ex, "Failed while sending error response about the server being busy.");
+            }
+            return;
+        }
+
         try (e) {
             handler.handle(e);
         } catch (Exception ex) {
@@ -99,26 +132,16 @@ public class ReqHandlers {
             return;
         }
 
-        String email;
-        String username;
-        String password;
-        try {
-            Document req = getReqDoc(e.getRequestBody());
-            email = req.getString("email");
-            username = req.getString("username");
-            password = req.getString("password");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
+        Requests.SignUp req = readRequest(e, Requests.SignUp::of);
+        if (req == null) return;
 
         try {
             try {
-                Auth.Tokens tokens = Auth.signUp(email, username, password);
+                Auth.Tokens tokens = Auth.signUp(req.email(), req.username(), req.password());
 
                 Document resDoc = new Document().append("accessToken", tokens.accessToken())
                         .append("refreshToken", tokens.refreshToken())
-                        .append("username", username)
+                        .append("username", req.username())
                         .append("userid", tokens.userid());
                 closeOutRequest(e, ResponseCodes.OK, resDoc);
             } catch (Auth.DuplicateEmail ex) {
@@ -133,6 +156,8 @@ public class ReqHandlers {
                 closeOutRequest(e, ResponseCodes.BAD_REQUEST, INVALID_EMAIL_RESPONSE);
             } catch (Auth.InvalidPassword ex) {
                 closeOutRequest(e, ResponseCodes.BAD_REQUEST, INVALID_PASSWORD_RESPONSE);
+            } catch (Auth.Busy ex) {
+                closeOutBusy(e);
             } catch (IOException ex) {
                 printException(e, ex, "Failed while responding to client with tokens for new account.");
             }
@@ -148,19 +173,11 @@ public class ReqHandlers {
             printException(e, ex, "Failed while sending error response about wrong request method.");
         }
 
-        String email;
-        String password;
-        try {
-            Document body = getReqDoc(e.getRequestBody());
-            email = body.getString("email");
-            password = body.getString("password");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
+        Requests.SignIn req = readRequest(e, Requests.SignIn::of);
+        if (req == null) return;
 
         try {
-            Auth.Tokens tokens = Auth.signIn(email, password);
+            Auth.Tokens tokens = Auth.signIn(req.email(), req.password());
 
             Document resDoc = new Document().append("accessToken", tokens.accessToken())
                     .append("refreshToken", tokens.refreshToken())
@@ -173,6 +190,18 @@ public class ReqHandlers {
             } catch (IOException exc) {
                 printException(e, ex, "Failed while sending error response about client being unauthorized.");
             }
+        } catch (Auth.Busy ex) {
+            try {
+                closeOutBusy(e);
+            } catch (IOException exc) {
+                printException(e, exc, "Failed while sending error response about the server being busy.");
+            }
+        } catch (Auth.InternalError ex) {
+            try {
+                closeOutRequest(e, ResponseCodes.INTERNAL_SERVER_ERROR, INTERNAL_ERROR_RESPONSE);
+            } catch (IOException exc) {
+                printException(e, exc, "Failed while sending error response about an internal error.");
+            }
         } catch (IOException ex) {
             printException(e, ex, "Failed while sending response containing new tokens.");
         }
@@ -186,18 +215,12 @@ public class ReqHandlers {
             return;
         }
 
-        String accessCookie;
-        try {
-            Document body = getReqDoc(e.getRequestBody());
-            accessCookie = body.getString("accessToken");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
+        Requests.Authenticated req = readRequest(e, Requests.Authenticated::of);
+        if (req == null) return;
 
         DecodedJWT accessToken;
         try {
-            accessToken = Auth.verifyAccess(accessCookie);
+            accessToken = Auth.verifyAccess(req.accessToken());
 
         } catch (Auth.TokenIsNotAccess | JWTVerificationException ex) {
             try {
@@ -211,28 +234,38 @@ public class ReqHandlers {
         }
 
         String userid = accessToken.getClaim("userid").asString();
-        Document resDoc = new Document();
-
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
 
-            List<Document> recentReviews = new ArrayList<>(5);
-            try (MongoCursor<Document> cursor = db.getCollection("reviews").find(new Document("userid", userid)).limit(5).sort(new Document("_id", -1)).cursor()) {
-                while (cursor.hasNext()) {
-                    Document review = cursor.next();
+        MongoDatabase db = DB.db();
 
-                    String username = db.getCollection("users").find(new Document("userid", review.getString("userid"))).first().getString("username");
-                    review.append("username", username);
-
-                    recentReviews.add(review);
+        List<Review> recentReviews;
+        Map<String, String> usernames;
+        try (Subtasks subtasks = new Subtasks()) {
+            Future<List<Review>> reviewsTask = subtasks.fork(() -> {
+                List<Review> reviews = new ArrayList<>(5);
+                try (MongoCursor<Review> cursor = db.getCollection("reviews", Review.class).find(new Document("userid", userid)).limit(5).sort(new Document("_id", -1)).cursor()) {
+                    while (cursor.hasNext())
+                        reviews.add(cursor.next());
                 }
-            }
-
-            resDoc.append("reviews", recentReviews);
+                return reviews;
+            });
+            // The reviews are all by this user, so only their username is needed, which can be read in the meantime.
+            Future<Map<String, String>> usernamesTask =
+                    subtasks.fork(() -> DB.getUsernames(db, List.of(userid), id -> id));
+            subtasks.join();
+            recentReviews = reviewsTask.resultNow();
+            usernames = usernamesTask.resultNow();
+        } catch (IOException | Subtasks.Failed ex) {
+            closeOutFailedSubtasks(e, ex);
+            return;
         }
 
         try {
-            closeOutRequest(e, ResponseCodes.OK, resDoc.toJson().getBytes(StandardCharsets.UTF_8));
+            closeOutRequest(e, ResponseCodes.OK, JsonOutput.toBytes(out -> {
+                out.beginObject().name("reviews").beginArray();
+                for (Review review : recentReviews)
+                    writeReview(out, review, usernames);
+                out.endArray().endObject();
+            }));
         } catch (IOException ex) {
             printException(e, ex, "Failed while sending a user's info.");
         }
@@ -246,14 +279,9 @@ public class ReqHandlers {
             return;
         }
 
-        String refreshToken;
-        try {
-            Document body = getReqDoc(e.getRequestBody());
-            refreshToken = body.getString("refreshToken");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
+        Requests.RefreshAccess req = readRequest(e, Requests.RefreshAccess::of);
+        if (req == null) return;
+        String refreshToken = req.refreshToken();
 
         String accessToken;
         try {
@@ -286,55 +314,34 @@ public class ReqHandlers {
             return;
         }
 
-        String bathroomid;
-        int page;
-        try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            bathroomid = reqDoc.getString("bathroomid");
-            page = reqDoc.getInteger("page"); // TODO: What if null is returned?
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
-        if (page < BASE_PAGE_NUMBER) page = BASE_PAGE_NUMBER;
-        if (bathroomid == null) {
-            try {
-                closeOutRequest(e, ResponseCodes.BAD_REQUEST, BATHROOM_ID_NOT_PRESENT_RESPONSE);
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending error response about a bathroom not existing.");
-                return;
-            }
-            return;
-        }
+        Requests.BathroomPage req = readRequest(e, Requests.BathroomPage::of);
+        if (req == null) return;
+        String bathroomid = req.bathroomid();
+        Page page = req.page();
 
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
+        try {
+            closeOutList(e, "getReviews " + bathroomid + " " + page, REVIEWS_CACHE_TTL_MS, page, tags -> {
+                tags.add("bathroom:" + bathroomid);
+                MongoDatabase db = DB.db();
 
-            StringBuilder sb = new StringBuilder("[");
-            FindIterable<Document> docs =
-                    db.getCollection("reviews").find(new Document("bathroomid", bathroomid));
+                // The whole page is needed up front to look up all of its usernames at once.
+                Page.Result<Review> result = page.fetch(db.getCollection("reviews", Review.class),
+                        new Document("bathroomid", bathroomid));
+                Map<String, String> usernames = DB.getUsernames(db, result.docs(), Review::userid);
 
-            try (MongoCursor<Document> cursor =
-                         docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                while (cursor.hasNext()) {
-                    Document d = cursor.next();
-                    sb.append(new Document()
-                            .append("username", db.getCollection("users").find(new Document("userid",
-                                    d.getString("userid"))).first().getString("username"))
-                            .append("rating", d.getInteger("rating"))
-                            .append("review", d.getString("review")).toJson()).append(", ");
+                List<JsonOutput.Writable> items = new ArrayList<>(result.docs().size());
+                for (Review review : result.docs()) {
+                    items.add(json -> json.beginObject()
+                            .field("username", usernames.getOrDefault(review.userid(), DB.MISSING_USERNAME))
+                            .field("rating", review.rating())
+                            .field("review", review.review())
+                            .endObject());
                 }
-            }
-            if (sb.length() > 1) sb.delete(sb.length() - 2, sb.length()); // Deletes final comma and space after it.
-            sb.append("]");
-            byte[] response = sb.toString().getBytes(StandardCharsets.UTF_8);
-
-            try {
-                closeOutRequest(e, ResponseCodes.OK, response);
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending response containing reviews.");
-                return;
-            }
+                return new Page.Result<>(items, result.nextCursor());
+            });
+        } catch (IOException ex) {
+            printException(e, ex, "Failed while sending response containing reviews.");
+            return;
         }
     }
 
@@ -346,24 +353,22 @@ public class ReqHandlers {
             return;
         }
 
-        String accessCookie;
-        String bathroomid;
-        int rating;
-        String review;
-        try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            accessCookie = reqDoc.getString("accessToken");
-            bathroomid = reqDoc.getString("bathroomid");
-            rating = reqDoc.getInteger("rating");
-            review = reqDoc.getString("review");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
+        Requests.CreateReview req = readRequest(e, Requests.CreateReview::of);
+        if (req == null) return;
+        String bathroomid = req.bathroomid();
+        int rating = req.rating();
+        if (!Ratings.isValid(rating)) {
+            try {
+                closeOutRequest(e, ResponseCodes.BAD_REQUEST, INVALID_RATING_RESPONSE);
+            } catch (IOException ex) {
+                printException(e, ex, "Failed while sending error response about an invalid rating.");
+            }
             return;
         }
 
         DecodedJWT accessToken;
         try {
-            accessToken = Auth.verifyAccess(accessCookie);
+            accessToken = Auth.verifyAccess(req.accessToken());
         } catch (Auth.TokenIsNotAccess | JWTVerificationException ex) {
             try {
                 System.err.println(ex);
@@ -377,31 +382,30 @@ public class ReqHandlers {
 
         String userid = accessToken.getClaim("userid").asString();
 
-        try (MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-            if (db.getCollection("bathrooms").find(new Document("bathroomid", bathroomid)).first() == null) {
-                try {
-                    closeOutRequest(e, ResponseCodes.BAD_REQUEST, BATHROOM_DOES_NOT_EXIST_RESPONSE);
-                } catch (IOException exc) {
-                    printException(e, exc, "Failed while sending error response about the client being unauthorized.");
-                    return;
-                }
+        Bathroom bathroom = Catalog.bathroom(bathroomid);
+        if (bathroom == null) {
+            try {
+                closeOutRequest(e, ResponseCodes.BAD_REQUEST, BATHROOM_DOES_NOT_EXIST_RESPONSE);
+            } catch (IOException exc) {
+                printException(e, exc, "Failed while sending error response about the client being unauthorized.");
                 return;
             }
-
-            MongoCollection<Document> collection = db.getCollection("reviews");
-            Document oldReview = collection.find(new Document()
-                    .append("userid", userid)
-                    .append("bathroomid", bathroomid)).first();
-            if (oldReview != null)
-                collection.deleteOne(oldReview);
-            collection.insertOne(new Document()
-                    .append("userid", userid)
-                    .append("bathroomid", bathroomid)
-                    .append("rating", rating)
-                    .append("review", review));
+            return;
         }
 
+        MongoDatabase db = DB.db();
+        MongoCollection<Review> collection = db.getCollection("reviews", Review.class);
+        // One atomic upsert, so that concurrent reviews by the same user replace each other instead of colliding on the
+        // unique (userid, bathroomid) index.
+        Review oldReview = collection.findOneAndReplace(new Document()
+                        .append("userid", userid)
+                        .append("bathroomid", bathroomid),
+                new Review(null, userid, bathroomid, rating, req.review()),
+                new FindOneAndReplaceOptions().upsert(true).returnDocument(ReturnDocument.BEFORE));
+        Ratings.onReviewChanged(db, bathroomid, oldReview == null ? null : oldReview.rating(), rating);
+        ResponseCache.invalidate("bathroom:" + bathroomid);
+        ResponseCache.invalidate("building:" + bathroom.buildingid());
+
         try {
             closeOutRequest(e, ResponseCodes.OK);
         } catch (IOException ex) {
@@ -417,56 +421,26 @@ public class ReqHandlers {
             return;
         }
 
-        String buildingId;
-        int page;
+        Requests.BuildingPage req = readRequest(e, Requests.BuildingPage::of);
+        if (req == null) return;
+        String buildingId = req.buildingid();
+        Page page = req.page();
+
         try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            buildingId = reqDoc.getString("buildingid");
-            page = reqDoc.getInteger("page"); // TODO: What if null is returned?
+            closeOutList(e, "getBathrooms " + buildingId + " " + page, CATALOG_CACHE_TTL_MS, page, tags -> {
+                tags.add(ResponseCache.CATALOG);
+                tags.add("building:" + buildingId);
+                Page.Result<Bathroom> result = page.slice(Catalog.bathroomsOf(buildingId));
+
+                List<JsonOutput.Writable> items = new ArrayList<>(result.docs().size());
+                for (Bathroom bathroom : result.docs())
+                    items.add(json -> writeBathroomSummary(json, bathroom));
+                return new Page.Result<>(items, result.nextCursor());
+            });
         } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
-        if (page < BASE_PAGE_NUMBER) page = BASE_PAGE_NUMBER;
-        if (buildingId == null) {
-            try {
-                closeOutRequest(e, ResponseCodes.BAD_REQUEST, BUILDING_ID_NOT_PRESENT_RESPONSE);
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending error response about a bathroom not existing.");
-                return;
-            }
+            printException(e, ex, "Failed while sending response containing reviews.");
             return;
         }
-
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-
-            StringBuilder sb = new StringBuilder("[");
-            FindIterable<Document> docs =
-                    db.getCollection("bathrooms").find(new Document("buildingid", buildingId));
-
-            try (MongoCursor<Document> cursor =
-                         docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                while (cursor.hasNext()) {
-                    Document d = cursor.next();
-                    sb.append(new Document()
-                            .append("bathroomid", d.getString("bathroomid"))
-                            // Do we need to send bathroom id if they are all the one that the request asked for?
-                            .append("buildingid", d.getString("buildingid"))
-                            .append("name", d.getString("name")).toJson()).append(", ");
-                }
-            }
-            if (sb.length() > 1) sb.delete(sb.length() - 2, sb.length()); // Deletes final comma and space after it.
-            sb.append("]");
-            byte[] response = sb.toString().getBytes(StandardCharsets.UTF_8);
-
-            try {
-                closeOutRequest(e, ResponseCodes.OK, response);
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending response containing reviews.");
-                return;
-            }
-        }
     }
 
     public static void getBuildings(HttpExchange e) {
@@ -477,43 +451,27 @@ public class ReqHandlers {
             return;
         }
 
-        int page;
+        Requests.BuildingsPage req = readRequest(e, Requests.BuildingsPage::of);
+        if (req == null) return;
+        Page page = req.page();
+
         try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            page = reqDoc.getInteger("page"); // TODO: What if null is returned?
+            closeOutList(e, "getBuildings " + page, CATALOG_CACHE_TTL_MS, page, tags -> {
+                tags.add(ResponseCache.CATALOG);
+                Page.Result<Building> result = page.slice(Catalog.buildings());
+
+                List<JsonOutput.Writable> items = new ArrayList<>(result.docs().size());
+                for (Building building : result.docs())
+                    items.add(json -> json.beginObject()
+                            .field("buildingid", building.buildingid())
+                            .field("name", building.name())
+                            .endObject());
+                return new Page.Result<>(items, result.nextCursor());
+            });
         } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
+            printException(e, ex, "Failed while sending response containing reviews.");
             return;
         }
-        if (page < BASE_PAGE_NUMBER) page = BASE_PAGE_NUMBER;
-
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-
-            StringBuilder sb = new StringBuilder("[");
-            FindIterable<Document> docs =
-                    db.getCollection("buildings").find();
-
-            try (MongoCursor<Document> cursor =
-                         docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                while (cursor.hasNext()) {
-                    Document d = cursor.next();
-                    sb.append(new Document()
-                            .append("buildingid", d.getString("buildingid"))
-                            .append("name", d.getString("name")).toJson()).append(", ");
-                }
-            }
-            if (sb.length() > 1) sb.delete(sb.length() - 2, sb.length()); // Deletes final comma and space after it.
-            sb.append("]");
-            byte[] response = sb.toString().getBytes(StandardCharsets.UTF_8);
-
-            try {
-                closeOutRequest(e, ResponseCodes.OK, response);
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending response containing reviews.");
-                return;
-            }
-        }
     }
 
     public static void getBuildingsWithBathrooms(HttpExchange e) {
@@ -524,56 +482,45 @@ public class ReqHandlers {
             return;
         }
 
-        int page;
-        try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            page = reqDoc.getInteger("page"); // TODO: What if null is returned?
+        Requests.BuildingsPage req = readRequest(e, Requests.BuildingsPage::of);
+        if (req == null) return;
+        Page page = req.page();
+        boolean raw = req.raw();
+
+        try {
+            closeOutList(e, "getBuildingsWithBathrooms " + raw + " " + page, CATALOG_CACHE_TTL_MS, page, tags -> {
+                tags.add(ResponseCache.CATALOG);
+                Page.Result<Building> result = page.slice(Catalog.buildings());
+
+                List<JsonOutput.Writable> items = new ArrayList<>(result.docs().size());
+                for (Building building : result.docs()) {
+                    tags.add("building:" + building.buildingid());
+                    List<Bathroom> bathrooms = Catalog.bathroomsOf(building.buildingid());
+                    List<Bathroom> sent =
+                            bathrooms.subList(0, Math.min(bathrooms.size(), MAX_BATHROOMS_PER_BUILDING));
+
+                    items.add(json -> {
+                        json.beginObject();
+                        if (raw)
+                            building.writeFields(json);
+                        else
+                            json.field("buildingid", building.buildingid()).field("name", building.name());
+                        json.name("bathrooms").beginArray();
+                        for (Bathroom bathroom : sent) {
+                            if (raw)
+                                writeBathroom(json, bathroom);
+                            else
+                                writeBathroomSummary(json, bathroom);
+                        }
+                        json.endArray().endObject();
+                    });
+                }
+                return new Page.Result<>(items, result.nextCursor());
+            });
         } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
+            printException(e, ex, "Failed while sending response containing reviews.");
             return;
         }
-        if (page < BASE_PAGE_NUMBER) page = BASE_PAGE_NUMBER;
-
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-
-            FindIterable<Document> docs =
-                    db.getCollection("buildings").find();
-            List<Document> toReturn = new ArrayList<>(ITEMS_PER_PAGE);
-            try (MongoCursor<Document> cursor =
-                         docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                while (cursor.hasNext())
-                    toReturn.add(cursor.next());
-            }
-
-            for (Document d : toReturn) {
-                docs = db.getCollection("bathrooms").find(new Document("buildingid", d.getString("buildingid")));
-                try (MongoCursor<Document> cursor =
-                             docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                    List<Document> bathrooms = new ArrayList<>();
-                    while (cursor.hasNext())
-                        bathrooms.add(cursor.next());
-                    d.append("bathrooms", bathrooms);
-                }
-            }
-
-            StringBuilder sb = new StringBuilder("[");
-            for (Document d : toReturn)
-                sb.append(d.toJson()).append(", ");
-            if (sb.length() > 1) sb.delete(sb.length() - 2, sb.length()); // Deletes final comma and space after it.
-            sb.append("]");
-
-            System.out.println(sb);
-
-            byte[] response = sb.toString().getBytes(StandardCharsets.UTF_8);
-
-            try {
-                closeOutRequest(e, ResponseCodes.OK, response);
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending response containing reviews.");
-                return;
-            }
-        }
     }
 
     public static void getBathroomWithReviews(HttpExchange e) {
@@ -584,54 +531,55 @@ public class ReqHandlers {
             return;
         }
 
-        String bathroomid;
-        int page;
-        try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            bathroomid = reqDoc.getString("bathroomid");
-            page = reqDoc.getInteger("page"); // TODO: What if null is returned?
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
-        if (page < BASE_PAGE_NUMBER) page = BASE_PAGE_NUMBER;
-        if (bathroomid == null) {
+        Requests.BathroomPage req = readRequest(e, Requests.BathroomPage::of);
+        if (req == null) return;
+        String bathroomid = req.bathroomid();
+        Page page = req.page();
+
+        // The catalog is in memory, so a missing bathroom or building is answered before any query.
+        Bathroom bathroom = Catalog.bathroom(bathroomid);
+        Building building = bathroom != null ? Catalog.building(bathroom.buildingid()) : null;
+        if (bathroom == null || building == null) {
             try {
-                closeOutRequest(e, ResponseCodes.BAD_REQUEST, BATHROOM_ID_NOT_PRESENT_RESPONSE);
+                closeOutRequest(e, ResponseCodes.NOT_FOUND,
+                        bathroom == null ? BATHROOM_DOES_NOT_EXIST_RESPONSE : BUILDING_DOES_NOT_EXIST_RESPONSE);
             } catch (IOException ex) {
-                printException(e, ex, "Failed while sending error response about a bathroom not existing.");
-                return;
+                printException(e, ex, "Failed while sending error response about a bathroom that does not exist.");
             }
             return;
         }
 
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-
-            Document toReturn = db.getCollection("bathrooms").find(new Document("bathroomid", bathroomid)).first();
-            FindIterable<Document> docs =
-                    db.getCollection("reviews").find(new Document("bathroomid", bathroomid));
+        try {
+            closeOutRequest(e, ResponseCodes.OK, ResponseCache.get("getBathroomWithReviews " + bathroomid + " " + page,
+                    REVIEWS_CACHE_TTL_MS, tags -> {
+                MongoDatabase db = DB.db();
+                tags.add(ResponseCache.CATALOG);
+                tags.add("bathroom:" + bathroomid);
+                tags.add("building:" + bathroom.buildingid());
 
-            try (MongoCursor<Document> cursor =
-                         docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                List<Document> reviews = new ArrayList<>(ITEMS_PER_PAGE);
-                while (cursor.hasNext()) {
-                    Document d = cursor.next();
-                    d.append("username", db.getCollection("users").find(new Document("userid", d.getString("userid"))).first().getString("username"));
-                    reviews.add(d);
-                }
+                // The usernames depend on the reviews, so the two queries run one after the other.
+                Page.Result<Review> result = page.fetch(db.getCollection("reviews", Review.class),
+                        new Document("bathroomid", bathroomid));
+                List<Review> reviews = result.docs();
+                Map<String, String> usernames = DB.getUsernames(db, reviews, Review::userid);
+                String buildingName = building.name();
 
-                toReturn.append("reviews", reviews);
-                toReturn.append("buildingName", db.getCollection("buildings").find(new Document("buildingid", toReturn.getString("buildingid"))).first().getString("name"));
-            }
-
-            try {
-                System.out.println(toReturn.toJson());
-                closeOutRequest(e, ResponseCodes.OK, toReturn.toJson());
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending response containing reviews.");
-                return;
-            }
+                return JsonOutput.toBytes(out -> {
+                    out.beginObject();
+                    bathroom.writeFields(out);
+                    Catalog.rating(bathroom).writeFields(out);
+                    out.name("reviews").beginArray();
+                    for (Review review : reviews)
+                        writeReview(out, review, usernames);
+                    out.endArray();
+                    if (page.cursorMode())
+                        out.field("nextCursor", result.nextCursor());
+                    out.field("buildingName", buildingName).endObject();
+                });
+            }));
+        } catch (IOException ex) {
+            printException(e, ex, "Failed while sending response containing reviews.");
+            return;
         }
     }
 
@@ -643,45 +591,29 @@ public class ReqHandlers {
             return;
         }
 
-        int page;
+        Requests.GetChats req = readRequest(e, Requests.GetChats::of);
+        if (req == null) return;
+        Page page = req.page();
+        Instant since = req.since();
+        Instant before = req.before();
+
+        String key = "getChats " + page + " since=" + since + " before=" + before;
         try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            page = reqDoc.getInteger("page"); // TODO: What if null is returned?
+            closeOutList(e, key, CHATS_CACHE_TTL_MS, page, tags -> {
+                tags.add(ResponseCache.CHATS);
+
+                Page.Result<Chat.WithUsername> result = RecentChats.page(page, since, before);
+                if (result != null)
+                    return result;
+                MongoDatabase db = DB.db();
+                Page.Result<Chat> fetched = page.fetchNewestFirst(db.getCollection("chats", Chat.class),
+                        Chats.between(since, before));
+                return new Page.Result<>(Chats.withUsernames(db, fetched.docs()), fetched.nextCursor());
+            });
         } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
+            printException(e, ex, "Failed while sending response containing reviews.");
             return;
         }
-        if (page < BASE_PAGE_NUMBER) page = BASE_PAGE_NUMBER;
-
-        try (final MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-
-            FindIterable<Document> docs =
-                    db.getCollection("chats").find();
-
-            JSONArray toReturn = new JSONArray();
-            try (MongoCursor<Document> cursor =
-                         docs.skip((page - BASE_PAGE_NUMBER) * ITEMS_PER_PAGE).limit(ITEMS_PER_PAGE).iterator()) {
-                while (cursor.hasNext()) {
-                    Document d = cursor.next();
-                    if (d.getBoolean("anon")) {
-                        d.remove("userid");
-                        d.append("username", "anon");
-                    }
-                    else
-                        d.append("username", db.getCollection("users").find(new Document("userid", d.getString("userid"))).first().getString("username"));
-
-                    toReturn.put(new org.json.JSONObject(d.toJson()));
-                }
-            }
-
-            try {
-                closeOutRequest(e, ResponseCodes.OK, toReturn.toString());
-            } catch (IOException ex) {
-                printException(e, ex, "Failed while sending response containing reviews.");
-                return;
-            }
-        }
     }
 
     public static void createChat(HttpExchange e) {
@@ -692,22 +624,12 @@ public class ReqHandlers {
             return;
         }
 
-        String accessCookie;
-        String text;
-        boolean isAnon;
-        try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            accessCookie = reqDoc.getString("accessToken");
-            text = reqDoc.getString("text");
-            isAnon = reqDoc.getBoolean("anon");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
+        Requests.CreateChat req = readRequest(e, Requests.CreateChat::of);
+        if (req == null) return;
 
         DecodedJWT accessToken;
         try {
-            accessToken = Auth.verifyAccess(accessCookie);
+            accessToken = Auth.verifyAccess(req.accessToken());
         } catch (Auth.TokenIsNotAccess | JWTVerificationException ex) {
             try {
                 System.err.println(ex);
@@ -721,17 +643,24 @@ public class ReqHandlers {
 
         String userid = accessToken.getClaim("userid").asString();
 
-        try (MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
+        MongoDatabase db = DB.db();
 
-            MongoCollection<Document> chats = db.getCollection("chats");
-            chats.insertOne(new Document()
-                    .append("userid", userid)
-                    .append("text", text)
-                    .append("datetime", LocalDateTime.now().format(DateTimeFormatter.ofPattern("d MMM uuuu HH:mm:ss")))
-                    .append("anon", isAnon)
-                    .append("chatid", UUID.randomUUID().toString())); // TODO: Pure luck that they don't collide :)
+        Chat chat = Chats.create(userid, req.text(), req.anon());
+        try {
+            ChatWriter.insert(chat);
+        } catch (ChatWriter.Busy ex) {
+            try {
+                closeOutBusy(e);
+            } catch (IOException exc) {
+                printException(e, exc, "Failed while sending error response about the server being busy.");
+            }
+            return;
         }
+        Chat.WithUsername sent = Chats.withUsernames(db, List.of(chat)).get(0);
+        // Invalidated once the recent chats have the new one, so that a page cached in between is not kept.
+        RecentChats.add(sent);
+        ResponseCache.invalidate(ResponseCache.CHATS);
+        ChatStream.publishCreated(sent);
 
         try {
             closeOutRequest(e, ResponseCodes.OK);
@@ -748,20 +677,13 @@ public class ReqHandlers {
             return;
         }
 
-        String accessCookie;
-        String chatid;
-        try {
-            Document reqDoc = getReqDoc(e.getRequestBody());
-            accessCookie = reqDoc.getString("accessToken");
-            chatid = reqDoc.getString("chatid");
-        } catch (IOException ex) {
-            printException(e, ex, "Failed while getting request body.");
-            return;
-        }
+        Requests.DeleteChat req = readRequest(e, Requests.DeleteChat::of);
+        if (req == null) return;
+        String chatid = req.chatid();
 
         DecodedJWT accessToken;
         try {
-            accessToken = Auth.verifyAccess(accessCookie);
+            accessToken = Auth.verifyAccess(req.accessToken());
         } catch (Auth.TokenIsNotAccess | JWTVerificationException ex) {
             try {
                 System.err.println(ex);
@@ -775,22 +697,23 @@ public class ReqHandlers {
 
         String userid = accessToken.getClaim("userid").asString();
 
-        try (MongoClient c = DB.client()) {
-            MongoDatabase db = DB.db(c);
-
-            MongoCollection<Document> chats = db.getCollection("chats");
-            if (!chats.find(new Document("chatid", chatid)).first().getString("userid").equals(userid))
-            {
-                try {
-                    closeOutRequest(e, ResponseCodes.UNAUTHORIZED, "User ids do not match.");
-                    return;
-                } catch (IOException exc) {
-                    printException(e, exc, "Failed while sending error response about the client being unauthorized.");
-                    return;
-                }
+        MongoDatabase db = DB.db();
+
+        MongoCollection<Chat> chats = db.getCollection("chats", Chat.class);
+        if (!chats.find(new Document("chatid", chatid)).first().userid().equals(userid))
+        {
+            try {
+                closeOutRequest(e, ResponseCodes.UNAUTHORIZED, "User ids do not match.");
+                return;
+            } catch (IOException exc) {
+                printException(e, exc, "Failed while sending error response about the client being unauthorized.");
+                return;
             }
-            chats.deleteOne(new Document("chatid", chatid));
         }
+        chats.deleteOne(new Document("chatid", chatid));
+        RecentChats.remove(chatid);
+        ResponseCache.invalidate(ResponseCache.CHATS);
+        ChatStream.publishDeleted(chatid);
 
         try {
             closeOutRequest(e, ResponseCodes.OK);
@@ -800,6 +723,110 @@ public class ReqHandlers {
 
     }
 
+    /**
+     * Runs the read requests of a batch (see Batch) and answers with {"results": [...]}, which has the status code and
+     * body of each request in order. The batch itself is answered with a 200 unless its body is invalid.
+     */
+    public static void batch(HttpExchange e) {
+        try {
+            if (!ensureMethod(e, "POST")) return;
+        } catch (IOException ex) {
+            printException(e, ex, "Failed while sending error response about wrong request method.");
+            return;
+        }
+
+        List<Batch.Request> requests = readBody(e, () -> Batch.read(e));
+        if (requests == null) return;
+
+        List<Batch.Result> results = Batch.run(e, requests);
+        try {
+            closeOutRequest(e, ResponseCodes.OK, JsonOutput.toBytes(out -> {
+                out.beginObject().name("results").beginArray();
+                for (Batch.Result result : results)
+                    result.writeJson(out);
+                out.endArray().endObject();
+            }));
+        } catch (IOException ex) {
+            printException(e, ex, "Failed while sending the results of a batch.");
+        }
+    }
+
+    /**
+     * Sends new and deleted chats as Server-Sent Events (see ChatStream) until the client disconnects.
+     * Reconnecting clients resume after their Last-Event-ID header, or lastEventId query parameter.
+     */
+    public static void chatStream(HttpExchange e) {
+        try {
+            if (!ensureMethod(e, "GET")) return;
+        } catch (IOException ex) {
+            printException(e, ex, "Failed while sending error response about wrong request method.");
+            return;
+        }
+
+        String lastEventId = e.getRequestHeaders().getFirst("Last-Event-ID");
+        String query = e.getRequestURI().getQuery();
+        if (lastEventId == null && query != null) {
+            for (String param : query.split("&"))
+                if (param.startsWith("lastEventId="))
+                    lastEventId = param.substring("lastEventId=".length());
+        }
+
+        // A subscriber must not hold a slot of SERVER_MAX_IN_FLIGHT (or a platform thread) while it waits for chats.
+        ChatStream.Subscriber subscriber = RequestExecutor.detach() ? ChatStream.subscribe(lastEventId) : null;
+        if (subscriber == null) {
+            try {
+                e.getResponseHeaders().set("Retry-After", String.valueOf(RequestExecutor.RETRY_AFTER_SECONDS));
+                closeOutRequest(e, ResponseCodes.SERVICE_UNAVAILABLE, CHAT_STREAM_UNAVAILABLE_RESPONSE);
+            } catch (IOException ex) {
+                printException(e, ex, "Failed while sending error response about live chat being unavailable.");
+            }
+            return;
+        }
+
+        try {
+            e.getResponseHeaders().set("Content-Type", "text/event-stream");
+            e.getResponseHeaders().set("Cache-Control", "no-cache");
+            e.sendResponseHeaders(ResponseCodes.OK, 0);
+            ChatStream.serve(subscriber, e.getResponseBody());
+        } catch (IOException ex) {
+            // The client disconnected, which is how event streams normally end.
+        }
+    }
+
+    /**
+     * Writes the fields of a bathroom sent in lists, with its current rating.
+     */
+    private static void writeBathroomSummary(JsonOutput out, Bathroom bathroom) throws IOException {
+        Catalog.Rating rating = Catalog.rating(bathroom);
+        out.beginObject()
+                .field("bathroomid", bathroom.bathroomid())
+                // Do we need to send bathroom id if they are all the one that the request asked for?
+                .field("buildingid", bathroom.buildingid())
+                .field("name", bathroom.name())
+                .field("average", rating.average())
+                .field("ratingCount", rating.count())
+                .endObject();
+    }
+
+    /**
+     * Writes all the fields of a bathroom, with its current rating aggregates.
+     */
+    private static void writeBathroom(JsonOutput out, Bathroom bathroom) throws IOException {
+        out.beginObject();
+        bathroom.writeFields(out);
+        Catalog.rating(bathroom).writeFields(out);
+        out.endObject();
+    }
+
+    /**
+     * Writes all the fields of a review, with the username of its author.
+     */
+    private static void writeReview(JsonOutput out, Review review, Map<String, String> usernames) throws IOException {
+        out.beginObject();
+        review.writeFields(out);
+        out.field("username", usernames.getOrDefault(review.userid(), DB.MISSING_USERNAME)).endObject();
+    }
+
     public static void printException(HttpExchange e, Exception ex) {
         printException(e, ex, null);
     }
@@ -818,24 +845,53 @@ public class ReqHandlers {
         System.err.println(sw);
     }
 
-    private static Document getReqDoc(InputStream reqBody) throws IOException {
-        try (reqBody) { // close on success or more importantly on failure as suggested by InputStream.readAllBytes().
-            String str = new String(reqBody.readAllBytes());
-            System.out.println(str);
-            return Document.parse(str);
+    /**
+     * Reads the request body of e (see RequestBody) and binds it to a request with binder. If the body is too large or
+     * invalid, the client is sent an error response instead.
+     * @return The request, or null if the body could not be read and the exchange was already answered.
+     */
+    private static <T> @Nullable T readRequest(HttpExchange e, Requests.Binder<T> binder) {
+        return readBody(e, () -> binder.bind(RequestBody.read(e)));
+    }
+
+    /**
+     * Like readRequest, for bodies that are not read into RequestBody.Fields.
+     */
+    private static <T> @Nullable T readBody(HttpExchange e, BodyReader<T> reader) {
+        try {
+            try {
+                return reader.read();
+            } catch (RequestBody.TooLarge ex) {
+                closeOutRequest(e, ResponseCodes.PAYLOAD_TOO_LARGE, REQUEST_TOO_LARGE_RESPONSE);
+            } catch (RequestBody.Invalid ex) {
+                closeOutRequest(e, ResponseCodes.BAD_REQUEST, new Document("error", ex.getMessage()));
+            }
+        } catch (IOException ex) {
+            printException(e, ex, "Failed while getting request body.");
         }
+        return null;
     }
 
+    private interface BodyReader<T> { T read() throws IOException, RequestBody.Invalid; }
+
     private static void closeOutRequest(HttpExchange e, int rCode) throws IOException {
         closeOutRequest(e, rCode, (byte[])null);
     }
 
     private static void closeOutRequest(HttpExchange e, int rCode, byte @Nullable [] response) throws IOException {
+        if (response != null) {
+            Compression.Encoding encoding = Compression.negotiate(e, response.length);
+            Compression.addHeaders(e, encoding);
+            response = Compression.compress(response, encoding);
+        }
+        sendResponse(e, rCode, response);
+    }
+
+    private static void sendResponse(HttpExchange e, int rCode, byte @Nullable [] response) throws IOException {
         if (response == null) {
             e.sendResponseHeaders(rCode, 0);
             e.close();
         } else {
-            System.out.println("Response\n" + new String(response));
             e.sendResponseHeaders(rCode, response.length);
             e.getResponseBody().write(response);
             e.close();
@@ -847,7 +903,80 @@ public class ReqHandlers {
     }
 
     private static void closeOutRequest(HttpExchange e, int rCode, Document response) throws IOException {
-        closeOutRequest(e, rCode, response.toJson());
+        closeOutRequest(e, rCode, JsonOutput.toBytes(out -> out.value(response)));
+    }
+
+    /**
+     * Sends a page of a list endpoint, from the ResponseCache if it has it. The page is encoded as a JSON array, or in
+     * cursor mode (see Page) as { "items": [...], "nextCursor": ... }.
+     */
+    private static void closeOutList(HttpExchange e, String key, long ttlMillis, Page page, ListLoader loader)
+            throws IOException {
+        closeOutRequest(e, ResponseCodes.OK, ResponseCache.get(key, ttlMillis, tags -> {
+            Page.Result<? extends JsonOutput.Writable> result = loader.load(tags);
+            return JsonOutput.toBytes(out -> {
+                if (page.cursorMode())
+                    out.beginObject().name("items");
+                out.beginArray();
+                for (JsonOutput.Writable item : result.docs())
+                    item.writeJson(out);
+                out.endArray();
+                if (page.cursorMode())
+                    out.field("nextCursor", result.nextCursor()).endObject();
+            });
+        }));
+    }
+
+    private interface ListLoader {
+        /**
+         * @param tags Add the ResponseCache tags of the page to it.
+         * @return The items of the page, each written as one value of the list.
+         */
+        Page.Result<? extends JsonOutput.Writable> load(List<String> tags) throws IOException;
+    }
+
+    /**
+     * Sends a response from the ResponseCache with its ETag, or only a 304 if the client sent that ETag in
+     * If-None-Match because it already has the response.
+     * Cached responses are only sent gzipped (compressed once when cached) or uncompressed.
+     */
+    private static void closeOutRequest(HttpExchange e, int rCode, ResponseCache.Entry response) throws IOException {
+        boolean gzip = response.gzipBody() != null
+                && Compression.negotiate(e, response.body().length) == Compression.Encoding.GZIP;
+        e.getResponseHeaders().set("ETag", gzip ? response.gzipEtag() : response.etag());
+        if (response.matches(e.getRequestHeaders().getFirst("If-None-Match"))) {
+            e.sendResponseHeaders(ResponseCodes.NOT_MODIFIED, -1);
+            e.close();
+            return;
+        }
+
+        Compression.addHeaders(e, gzip ? Compression.Encoding.GZIP : Compression.Encoding.IDENTITY);
+        sendResponse(e, rCode, gzip ? response.gzipBody() : response.body());
+    }
+
+    /**
+     * Responds to a request whose Subtasks did not all finish: with a 503 if they took too long, or a 500 if one
+     * failed, which is printed.
+     */
+    private static void closeOutFailedSubtasks(HttpExchange e, Exception ex) {
+        try {
+            if (ex instanceof Subtasks.TimedOut || ex instanceof InterruptedIOException) {
+                closeOutBusy(e);
+            } else {
+                printException(e, ex, "A query of the request failed.");
+                closeOutRequest(e, ResponseCodes.INTERNAL_SERVER_ERROR, INTERNAL_ERROR_RESPONSE);
+            }
+        } catch (IOException exc) {
+            printException(e, exc, "Failed while sending error response about the request failing.");
+        }
+    }
+
+    /**
+     * Responds with a 503 asking the client to retry after a little while.
+     */
+    private static void closeOutBusy(HttpExchange e) throws IOException {
+        e.getResponseHeaders().add("Retry-After", Integer.toString(RequestExecutor.RETRY_AFTER_SECONDS));
+        closeOutRequest(e, ResponseCodes.SERVICE_UNAVAILABLE, SERVER_BUSY_RESPONSE);
     }
 
     /**
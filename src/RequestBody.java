@@ -0,0 +1,246 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the JSON object in a request body with Jackson's streaming parser, without buffering the body, into Fields
+ * that the records in Requests are bound from.
+ * <p>
+ * Bodies must be UTF-8 and at most REQUEST_MAX_BYTES bytes (default 64 KiB). A body over that is rejected with
+ * TooLarge as soon as its Content-Length is known to be too large, or once that many bytes were read if it has none.
+ * Only the top level fields of the object are kept, nested objects and arrays are skipped. Bodies with nested values
+ * (e.g. of Batch) are read with their own BodyReader instead.
+ */
+public class RequestBody {
+    public static final int MAX_BYTES = Env.getInt("REQUEST_MAX_BYTES", 64 * 1024);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Object NESTED = new Object(); // Value of fields that are objects or arrays.
+
+    /**
+     * Reads the request body of e, and closes it.
+     * @throws TooLarge If the body is over REQUEST_MAX_BYTES.
+     * @throws Invalid If the body is not a JSON object.
+     */
+    public static Fields read(HttpExchange e) throws IOException, Invalid {
+        return read(e, RequestBody::readFields);
+    }
+
+    /**
+     * Reads the request body of e with reader instead of into Fields, for bodies with nested values, and closes it.
+     * @throws TooLarge If the body is over REQUEST_MAX_BYTES.
+     * @throws Invalid If reader throws it, or the body is not valid JSON.
+     */
+    public static <T> T read(HttpExchange e, BodyReader<T> reader) throws IOException, Invalid {
+        long length = -1;
+        String contentLength = e.getRequestHeaders().getFirst("Content-Length");
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ex) {
+                throw new Invalid("Content-Length is invalid.");
+            }
+        }
+        return read(e.getRequestBody(), length, reader);
+    }
+
+    /**
+     * @param length The length of the body if known, -1 otherwise.
+     */
+    public static Fields read(InputStream body, long length) throws IOException, Invalid {
+        return read(body, length, RequestBody::readFields);
+    }
+
+    /**
+     * @param length The length of the body if known, -1 otherwise.
+     */
+    public static <T> T read(InputStream body, long length, BodyReader<T> bodyReader) throws IOException, Invalid {
+        try (body) {
+            if (length > MAX_BYTES)
+                throw new TooLarge();
+
+            Reader reader = new InputStreamReader(new LimitedInputStream(body), StandardCharsets.UTF_8.newDecoder());
+            try (JsonParser parser = JSON_FACTORY.createParser(reader)) {
+                T value = bodyReader.read(parser);
+                if (parser.nextToken() != null)
+                    throw new Invalid("The request body must be a single JSON object.");
+                return value;
+            } catch (JsonProcessingException ex) {
+                throw new Invalid("The request body is not valid JSON.");
+            } catch (CharacterCodingException ex) {
+                throw new Invalid("The request body is not valid UTF-8.");
+            }
+        }
+    }
+
+    /**
+     * Copies the value the parser is at, with everything nested in it, as compact JSON.
+     */
+    public static byte[] copyValue(JsonParser parser) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.copyCurrentStructure(parser);
+        }
+        return out.toByteArray();
+    }
+
+    private static Fields readFields(JsonParser parser) throws IOException, Invalid {
+        JsonToken token = parser.nextToken();
+        if (token == null)
+            return new Fields(Map.of()); // An empty body has no fields.
+        if (token != JsonToken.START_OBJECT)
+            throw new Invalid("The request body must be a JSON object.");
+
+        Map<String, Object> fields = new HashMap<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            fields.put(name, switch (parser.nextToken()) {
+                case VALUE_STRING -> parser.getText();
+                case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> parser.getNumberValue();
+                case VALUE_TRUE -> Boolean.TRUE;
+                case VALUE_FALSE -> Boolean.FALSE;
+                case VALUE_NULL -> null;
+                default -> {
+                    parser.skipChildren();
+                    yield NESTED;
+                }
+            });
+        }
+        return new Fields(fields);
+    }
+
+    /**
+     * Reads a whole body from a parser that is before its first token, leaving the parser after its last token.
+     */
+    public interface BodyReader<T> { T read(JsonParser parser) throws IOException, Invalid; }
+
+    /**
+     * The top level fields of a request body, with typed getters that throw Invalid when a field has the wrong type
+     * or a required one is missing (or null).
+     */
+    public static class Fields {
+        private final Map<String, Object> fields;
+
+        Fields(Map<String, Object> fields) {
+            this.fields = fields;
+        }
+
+        public boolean has(String name) {
+            return fields.containsKey(name);
+        }
+
+        /**
+         * @return The value of a field as parsed: a String, Number or Boolean, or null if it is missing or null.
+         */
+        public @Nullable Object get(String name) throws Invalid {
+            Object value = fields.get(name);
+            if (value == NESTED)
+                throw new Invalid(name + " must not be an object or array.");
+            return value;
+        }
+
+        /**
+         * @param missing The error message if the field is missing.
+         */
+        public String string(String name, String missing) throws Invalid {
+            String value = optionalString(name);
+            if (value == null)
+                throw new Invalid(missing);
+            return value;
+        }
+
+        public String string(String name) throws Invalid {
+            return string(name, name + " is missing.");
+        }
+
+        public @Nullable String optionalString(String name) throws Invalid {
+            Object value = get(name);
+            if (value != null && !(value instanceof String))
+                throw new Invalid(name + " must be a string.");
+            return (String) value;
+        }
+
+        public int integer(String name, String invalid) throws Invalid {
+            Integer value = optionalInteger(name, invalid);
+            if (value == null)
+                throw new Invalid(invalid);
+            return value;
+        }
+
+        /**
+         * @param invalid The error message if the field is not an integer.
+         */
+        public @Nullable Integer optionalInteger(String name, String invalid) throws Invalid {
+            Object value = get(name);
+            if (value == null)
+                return null;
+            if (!(value instanceof Integer || value instanceof Long))
+                throw new Invalid(invalid);
+            long n = ((Number) value).longValue();
+            if (n != (int) n)
+                throw new Invalid(invalid);
+            return (int) n;
+        }
+
+        public boolean bool(String name, boolean defaultValue) throws Invalid {
+            Object value = get(name);
+            if (value == null)
+                return defaultValue;
+            if (!(value instanceof Boolean b))
+                throw new Invalid(name + " must be true or false.");
+            return b;
+        }
+    }
+
+    /**
+     * Stops reading with TooLarge after MAX_BYTES bytes.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining = MAX_BYTES;
+
+        LimitedInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1 && --remaining < 0)
+                throw new TooLarge();
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Read one more byte than allowed to tell a body of exactly MAX_BYTES from a larger one.
+            int n = super.read(b, off, (int) Math.min(len, remaining + 1));
+            if (n > 0 && (remaining -= n) < 0)
+                throw new TooLarge();
+            return n;
+        }
+    }
+
+    /**
+     * The request body is over REQUEST_MAX_BYTES. An IOException so that it passes through the parser.
+     */
+    public static class TooLarge extends IOException { }
+
+    /**
+     * The request body or one of its fields is invalid, the message says why and is sent to the client.
+     */
+    public static class Invalid extends Exception {
+        public Invalid(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor the HttpServer runs exchanges on.
+ * By default every exchange gets its own virtual thread, setting SERVER_EXECUTOR=platform in the .env file uses a
+ * fixed pool of SERVER_THREADS platform threads instead.
+ * At most SERVER_MAX_IN_FLIGHT exchanges are admitted (queued or running) at a time. Exchanges over that limit are
+ * still run, but on a throwaway virtual thread with isRejected() returning true so that
+ * ReqHandlers.handleUncaughtExceptions answers them with a quick 503 instead of doing any real work.
+ * Long lived exchanges (see ChatStream) can detach() from the limit when they run on virtual threads.
+ */
+public class RequestExecutor implements Executor {
+    public static final int RETRY_AFTER_SECONDS = Env.getInt("SERVER_RETRY_AFTER_S", 1);
+
+    private static final ThreadLocal<Boolean> REJECTED = new ThreadLocal<>();
+    private static final ThreadLocal<Admission> ADMISSION = new ThreadLocal<>();
+
+    private final ExecutorService delegate;
+    private final boolean virtual;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public RequestExecutor() {
+        String mode = Env.get("SERVER_EXECUTOR");
+        if (mode != null && mode.equalsIgnoreCase("platform")) {
+            int threads = Env.getInt("SERVER_THREADS", Runtime.getRuntime().availableProcessors() * 2);
+            delegate = Executors.newFixedThreadPool(threads);
+            virtual = false;
+            System.out.println("Serving requests on " + threads + " platform threads.");
+        } else {
+            delegate = Executors.newVirtualThreadPerTaskExecutor();
+            virtual = true;
+            System.out.println("Serving requests on virtual threads.");
+        }
+        maxInFlight = Env.getInt("SERVER_MAX_IN_FLIGHT", 512);
+    }
+
+    /**
+     * @return True if the current thread is handling an exchange that was over the in flight limit.
+     */
+    public static boolean isRejected() {
+        return REJECTED.get() != null;
+    }
+
+    /**
+     * Stops counting the exchange of the current thread against SERVER_MAX_IN_FLIGHT, for exchanges that stay open
+     * for a long time while mostly idle. Only possible on virtual threads, as a platform thread stays taken anyway.
+     * @return True if the exchange was detached (or was never counted).
+     */
+    public static boolean detach() {
+        Admission admission = ADMISSION.get();
+        if (admission == null)
+            return true;
+        if (!admission.executor.virtual)
+            return false;
+        admission.release();
+        return true;
+    }
+
+    @Override
+    public void execute(Runnable exchange) {
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            Thread.ofVirtual().start(() -> {
+                REJECTED.set(true);
+                exchange.run();
+            });
+            return;
+        }
+
+        try {
+            delegate.execute(() -> {
+                Admission admission = new Admission(this);
+                ADMISSION.set(admission);
+                try {
+                    exchange.run();
+                } finally {
+                    ADMISSION.remove();
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // Only happens after shutdown().
+            inFlight.decrementAndGet();
+            throw ex;
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    public int rejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        delegate.shutdown();
+        try {
+            if (!delegate.awaitTermination(10, TimeUnit.SECONDS))
+                delegate.shutdownNow();
+        } catch (InterruptedException e) {
+            delegate.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Admission {
+        private final RequestExecutor executor;
+        private boolean released = false; // Only used by the thread running the exchange.
+
+        Admission(RequestExecutor executor) {
+            this.executor = executor;
+        }
+
+        void release() {
+            if (!released) {
+                released = true;
+                executor.inFlight.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+
+/**
+ * The request of each endpoint in ReqHandlers, bound from its body (see RequestBody). Binding throws
+ * RequestBody.Invalid, with a message for the client, if a required field is missing or a field has the wrong type.
+ */
+public class Requests {
+    private static final String BATHROOM_ID_MISSING = "Bathroom id not present in request.";
+    private static final String BUILDING_ID_MISSING = "Building id not present in request.";
+
+    public record SignUp(String email, String username, String password) {
+        static SignUp of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new SignUp(body.string("email"), body.string("username"), body.string("password"));
+        }
+    }
+
+    public record SignIn(String email, String password) {
+        static SignIn of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new SignIn(body.string("email"), body.string("password"));
+        }
+    }
+
+    /**
+     * Requests with nothing but an access token, e.g. getMyInfo.
+     */
+    public record Authenticated(String accessToken) {
+        static Authenticated of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new Authenticated(body.string("accessToken"));
+        }
+    }
+
+    /**
+     * @param refreshToken Null if missing, which is answered like an invalid token.
+     */
+    public record RefreshAccess(@Nullable String refreshToken) {
+        static RefreshAccess of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new RefreshAccess(body.optionalString("refreshToken"));
+        }
+    }
+
+    /**
+     * getReviews and getBathroomWithReviews.
+     */
+    public record BathroomPage(String bathroomid, Page page) {
+        static BathroomPage of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new BathroomPage(body.string("bathroomid", BATHROOM_ID_MISSING), Page.from(body));
+        }
+    }
+
+    public record CreateReview(String accessToken, String bathroomid, int rating, @Nullable String review) {
+        static CreateReview of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new CreateReview(body.string("accessToken"), body.string("bathroomid", BATHROOM_ID_MISSING),
+                    body.integer("rating", "Rating must be between " + Ratings.MIN_RATING + " and "
+                            + Ratings.MAX_RATING + "."),
+                    body.optionalString("review"));
+        }
+    }
+
+    public record BuildingPage(String buildingid, Page page) {
+        static BuildingPage of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new BuildingPage(body.string("buildingid", BUILDING_ID_MISSING), Page.from(body));
+        }
+    }
+
+    /**
+     * getBuildings and getBuildingsWithBathrooms, raw is only used by the latter.
+     */
+    public record BuildingsPage(Page page, boolean raw) {
+        static BuildingsPage of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new BuildingsPage(Page.from(body), body.bool("raw", false));
+        }
+    }
+
+    public record GetChats(Page page, @Nullable Instant since, @Nullable Instant before) {
+        static GetChats of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new GetChats(Page.from(body), instant(body, "since"), instant(body, "before"));
+        }
+    }
+
+    public record CreateChat(String accessToken, String text, boolean anon) {
+        static CreateChat of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new CreateChat(body.string("accessToken"), body.string("text"), body.bool("anon", false));
+        }
+    }
+
+    public record DeleteChat(String accessToken, String chatid) {
+        static DeleteChat of(RequestBody.Fields body) throws RequestBody.Invalid {
+            return new DeleteChat(body.string("accessToken"), body.string("chatid"));
+        }
+    }
+
+    public interface Binder<T> { T bind(RequestBody.Fields body) throws RequestBody.Invalid; }
+
+    private static @Nullable Instant instant(RequestBody.Fields body, String name) throws RequestBody.Invalid {
+        try {
+            return Chats.parseInstant(body.get(name));
+        } catch (IllegalArgumentException e) {
+            throw new RequestBody.Invalid(name + " must be an ISO-8601 instant or milliseconds since the epoch.");
+        }
+    }
+}
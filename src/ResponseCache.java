@@ -0,0 +1,183 @@
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of whole encoded responses of the list endpoints, each with a strong ETag so that clients sending it back in
+ * If-None-Match get a 304 without a body (see ReqHandlers.closeOutRequest).
+ * <p>
+ * Entries expire after the TTL their endpoint asks for, and are dropped earlier through tags: each entry is tagged with
+ * what its response was built from (e.g. "bathroom:<id>" or CHATS) and invalidate(tag) is called after that changes.
+ * Invalidating only records when it happened, entries loaded before that are ignored and replaced when next read.
+ * <p>
+ * At most RESPONSE_CACHE_MB megabytes (default 32) of responses are kept, the least recently used are evicted first.
+ * Set RESPONSE_CACHE=off to disable it.
+ */
+public class ResponseCache {
+    /**
+     * Tag of responses built from the Catalog, invalidated whenever it is reloaded.
+     */
+    public static final String CATALOG = "catalog";
+    public static final String CHATS = "chats";
+
+    private static final boolean ENABLED = !"off".equalsIgnoreCase(Env.get("RESPONSE_CACHE"));
+    private static final long MAX_BYTES = Env.getLong("RESPONSE_CACHE_MB", 32) * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD = 256; // Rough size of an entry's key, ETag and map node.
+
+    private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(256, 0.75f, true);
+    private static long bytes = 0; // Guarded by ENTRIES.
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final ConcurrentHashMap<String, Long> invalidatedAt = new ConcurrentHashMap<>();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    /**
+     * @return The cached response for key, or the one loader builds (which is then cached for ttlMillis).
+     */
+    public static Entry get(String key, long ttlMillis, Loader loader) throws IOException {
+        if (ENABLED) {
+            Entry entry;
+            synchronized (ENTRIES) {
+                entry = ENTRIES.get(key);
+            }
+            if (entry != null && isValid(entry)) {
+                hits.increment();
+                return entry;
+            }
+        }
+        misses.increment();
+
+        // Read before loading, so that an invalidation while loading makes the entry invalid.
+        long loadedAt = sequence.get();
+        List<String> tags = new ArrayList<>(4);
+        byte[] body = loader.load(tags);
+        byte[] gzipBody = body.length >= Compression.MIN_BYTES
+                ? Compression.compress(body, Compression.Encoding.GZIP) : null;
+        Entry entry = new Entry(key, body, gzipBody, etag(body), loadedAt,
+                System.nanoTime() + ttlMillis * 1_000_000, tags.toArray(new String[0]));
+        if (ENABLED)
+            put(entry);
+        return entry;
+    }
+
+    /**
+     * Drops every response tagged with tag. Call it after the data they were built from has changed.
+     */
+    public static void invalidate(String tag) {
+        invalidatedAt.put(tag, sequence.incrementAndGet());
+    }
+
+    public static void clear() {
+        synchronized (ENTRIES) {
+            ENTRIES.clear();
+            bytes = 0;
+        }
+    }
+
+    public static Stats stats() {
+        synchronized (ENTRIES) {
+            return new Stats(hits.sum(), misses.sum(), ENTRIES.size(), bytes, MAX_BYTES, ENABLED);
+        }
+    }
+
+    private static boolean isValid(Entry entry) {
+        if (System.nanoTime() - entry.expiresAt > 0)
+            return false;
+        for (String tag : entry.tags) {
+            Long invalidated = invalidatedAt.get(tag);
+            if (invalidated != null && invalidated > entry.loadedAt)
+                return false;
+        }
+        return true;
+    }
+
+    private static void put(Entry entry) {
+        long size = entry.size();
+        if (size > MAX_BYTES)
+            return;
+
+        synchronized (ENTRIES) {
+            Entry old = ENTRIES.put(entry.key, entry);
+            if (old != null)
+                bytes -= old.size();
+            bytes += size;
+
+            Iterator<Entry> eldest = ENTRIES.values().iterator();
+            while (bytes > MAX_BYTES && eldest.hasNext()) {
+                bytes -= eldest.next().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, 16)) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // Every JVM has SHA-256.
+        }
+    }
+
+    public interface Loader {
+        /**
+         * @param tags Add the tags of the response to it.
+         * @return The encoded response.
+         */
+        byte[] load(List<String> tags) throws IOException;
+    }
+
+    /**
+     * @param gzipBody The body compressed with gzip, null if it is too small to be worth it.
+     */
+    public record Entry(String key, byte[] body, byte @Nullable [] gzipBody, String etag, long loadedAt,
+                        long expiresAt, String[] tags) {
+        long size() {
+            return body.length + (gzipBody == null ? 0 : gzipBody.length) + key.length() * 2L + ENTRY_OVERHEAD;
+        }
+
+        /**
+         * @return The ETag of the gzipped body, which differs from the uncompressed one's as it is another
+         * representation.
+         */
+        public String gzipEtag() {
+            return etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+
+        /**
+         * @param ifNoneMatch The If-None-Match header of a request.
+         * @return True if the client already has this response.
+         */
+        public boolean matches(@Nullable String ifNoneMatch) {
+            if (ifNoneMatch == null)
+                return false;
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) // If-None-Match uses the weak comparison.
+                    tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag) || tag.equals(gzipEtag()))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    public record Stats(long hits, long misses, int entries, long bytes, long maxBytes, boolean enabled) {
+        @Override
+        public String toString() {
+            if (!enabled)
+                return "disabled (RESPONSE_CACHE=off)";
+            long lookups = hits + misses;
+            return "hits=" + hits + " misses=" + misses
+                    + String.format(" hitRate=%.1f%%", lookups == 0 ? 0.0 : 100.0 * hits / lookups)
+                    + " entries=" + entries + " size=" + bytes / 1024 + "KiB/" + maxBytes / 1024 + "KiB";
+        }
+    }
+}
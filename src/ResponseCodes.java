@@ -1,7 +1,12 @@
 public class ResponseCodes {
     public static final int OK = 200;
+    public static final int NOT_MODIFIED = 304;
     public static final int BAD_REQUEST = 400;
     public static final int UNAUTHORIZED = 401;
+    public static final int NOT_FOUND = 404;
     public static final int CONFLICT = 409;
+    public static final int PAYLOAD_TOO_LARGE = 413;
     public static final int INTERNAL_SERVER_ERROR = 500;
+    public static final int SERVICE_UNAVAILABLE = 503;
+    public static final int GATEWAY_TIMEOUT = 504;
 }
@@ -0,0 +1,23 @@
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.types.ObjectId;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+
+/**
+ * A document of the reviews collection, decoded and encoded by the driver's record codec.
+ * @param id Null only in a replacement, which then keeps the _id of the review it replaces (or gets a new one).
+ */
+public record Review(@BsonId @Nullable ObjectId id, String userid, String bathroomid, int rating, @Nullable String review)
+        implements Page.Item {
+    /**
+     * Writes the stored fields into the current object of out.
+     */
+    public void writeFields(JsonOutput out) throws IOException {
+        out.field("_id", id)
+                .field("userid", userid)
+                .field("bathroomid", bathroomid)
+                .field("rating", rating)
+                .field("review", review);
+    }
+}
@@ -0,0 +1,123 @@
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs the independent queries of a request at the same time, each on its own virtual thread, so that the request
+ * takes as long as the slowest of them instead of all of them added up. Works like StructuredTaskScope's
+ * ShutdownOnFailure, which is still a preview API in Java 21:
+ * <p>
+ * try (Subtasks subtasks = new Subtasks()) {
+ *     Future&lt;A&gt; a = subtasks.fork(...);
+ *     Future&lt;B&gt; b = subtasks.fork(...);
+ *     subtasks.join();
+ *     use(a.resultNow(), b.resultNow());
+ * }
+ * <p>
+ * join() waits until all of them are done, or one failed, or the deadline of REQUEST_DEADLINE_MS (default 5000) after
+ * the Subtasks were created passed. Closing it interrupts those still running, so that none outlive the request.
+ * Only fork queries that do not depend on each other: a subtask must not wait for the result of another one, which
+ * could still be waiting for a connection. Queries that need each other's results run one after the other instead.
+ */
+public class Subtasks implements AutoCloseable {
+    private static final long DEADLINE_MS = Env.getLong("REQUEST_DEADLINE_MS", 5_000);
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DEADLINE_MS);
+    private final List<Future<?>> forked = new ArrayList<>(4);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private int running = 0; // Guarded by lock.
+    private @Nullable Throwable failure = null; // Guarded by lock.
+
+    /**
+     * Starts running task. Only call it from the thread that created the Subtasks.
+     * @return The future of task, get its result with resultNow() after join() returned.
+     */
+    public <T> Future<T> fork(Callable<T> task) {
+        lock.lock();
+        try {
+            running++;
+        } finally {
+            lock.unlock();
+        }
+        Future<T> future = EXECUTOR.submit(() -> {
+            Throwable failed = null;
+            try {
+                return task.call();
+            } catch (Throwable ex) {
+                failed = ex;
+                throw ex;
+            } finally {
+                done(failed);
+            }
+        });
+        forked.add(future);
+        return future;
+    }
+
+    /**
+     * Waits until every forked task is done.
+     * @throws Failed If a task threw, with what it threw as the cause.
+     * @throws TimedOut If the deadline passed first.
+     * @throws InterruptedIOException If the thread was interrupted while waiting.
+     */
+    public void join() throws IOException {
+        Throwable failed;
+        lock.lock();
+        try {
+            long remaining = deadline - System.nanoTime();
+            while (running > 0 && failure == null) {
+                if (remaining <= 0)
+                    throw new TimedOut();
+                remaining = changed.awaitNanos(remaining);
+            }
+            failed = failure;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            lock.unlock();
+        }
+        if (failed != null)
+            throw new Failed(failed);
+    }
+
+    /**
+     * Interrupts the tasks that are still running.
+     */
+    @Override
+    public void close() {
+        for (Future<?> future : forked)
+            future.cancel(true);
+    }
+
+    private void done(@Nullable Throwable failed) {
+        lock.lock();
+        try {
+            running--;
+            if (failed != null && failure == null)
+                failure = failed;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The deadline passed before the tasks were done. An IOException so that it passes through ResponseCache loaders.
+     */
+    public static class TimedOut extends IOException { }
+
+    public static class Failed extends RuntimeException {
+        Failed(Throwable cause) {
+            super("A subtask failed.", cause);
+        }
+    }
+}
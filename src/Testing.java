@@ -1,4 +1,3 @@
-import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
@@ -14,17 +13,17 @@ import java.util.*;
 
 public class Testing {
     public static void genTestingCollections() {
-        try (MongoClient client = DB.client()) {
-            MongoDatabase db = DB.db(client);
+        try {
+            MongoDatabase db = DB.db();
             Random rand = new Random();
 
             // Gen users
-            Document[] userDocs = new Document[10];
+            User[] userDocs = new User[10];
             {
                 db.createCollection("users");
-                MongoCollection<Document> users = db.getCollection("users");
+                MongoCollection<User> users = db.getCollection("users", User.class);
                 for (int i = 0; i < 10; i++) {
-                    userDocs[i] = Auth.createNewUserDoc(
+                    userDocs[i] = Auth.createNewUser(
                             "e" + rand.nextLong() + "@gmail.com",
                             "u" + rand.nextLong(),
                             "p" + rand.nextLong(), db);
@@ -54,7 +53,6 @@ public class Testing {
                     bathroomDocs[i] = new Document[rand.nextInt(0, 4)];
                     for (int j = 0; j < bathroomDocs[i].length; j++) {
                         bathroomDocs[i][j] = new Document()
-                                .append("average", 0)
                                 .append("bathroomid", UUID.randomUUID().toString())
                                 .append("buildingid", buildingDocs[i].get("buildingid"))
                                 .append("name", (rand.nextBoolean() ? "Men's" : "Women's") + " Bathroom #" + Long.toString(rand.nextLong()).substring(0, 5));
@@ -70,43 +68,34 @@ public class Testing {
             MongoCollection<Document> reviews = db.getCollection("reviews");
             for (Document[] bathrooms : bathroomDocs) {
                 for (Document bathroom : bathrooms) {
-                    for (Document userDoc : userDocs) {
+                    for (User userDoc : userDocs) {
                         reviews.insertOne(new Document()
                                 .append("reviewid", UUID.randomUUID().toString())
-                                .append("userid", userDoc.get("userid"))
+                                .append("userid", userDoc.userid())
                                 .append("bathroomid", bathroom.get("bathroomid"))
-                                .append("rating", rand.nextInt(0, 6))
+                                .append("rating", rand.nextInt(Ratings.MIN_RATING, Ratings.MAX_RATING + 1))
                                 .append("review", "r" + rand.nextLong()));
                     }
                 }
             }
 
-            // Gen bathroom averages
-            for (Document[] bathrooms : bathroomDocs) {
-                for (Document bathroom : bathrooms) {
-                    float max = 0;
-                    float rating = 0;
-                    for (Document review : reviews.find(new Document("bathroomid", bathroom.getString("bathroomid")))) {
-                        max += 5;
-                        rating += review.getInteger("rating");
-                    }
-                    bathroom.append("average", max / rating);
-                    db.getCollection("bathrooms").replaceOne(new Document("bathroomid", bathroom.getString("bathroomid")), bathroom);
-                }
-            }
-        } catch (Auth.InternalError e) {
+            // Gen bathroom rating aggregates
+            Ratings.rebuild(db);
+
+            // Dropping the collections in deleteAllData also dropped their indexes.
+            DBIndexes.ensure(db);
+        } catch (Auth.InternalError | Auth.Busy e) {
             throw new RuntimeException(e);
         }
     }
 
     public static void deleteAllData() {
-        try (MongoClient client = DB.client()) {
-            MongoDatabase db = DB.db(client);
-            db.getCollection("users").drop();
-            db.getCollection("buildings").drop();
-            db.getCollection("bathrooms").drop();
-            db.getCollection("reviews").drop();
-        }
+        MongoDatabase db = DB.db();
+        db.getCollection("users").drop();
+        db.getCollection("buildings").drop();
+        db.getCollection("bathrooms").drop();
+        db.getCollection("reviews").drop();
+        Catalog.reload(db);
     }
 
     public static void genRSAKeys() {
@@ -0,0 +1,8 @@
+import org.bson.codecs.pojo.annotations.BsonId;
+import org.bson.types.ObjectId;
+
+/**
+ * A document of the users collection, decoded and encoded by the driver's record codec.
+ * @param password The BCrypt hash of the password (see PasswordHasher).
+ */
+public record User(@BsonId ObjectId id, String userid, String email, String username, String password) { }